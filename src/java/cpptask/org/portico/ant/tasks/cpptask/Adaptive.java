@@ -0,0 +1,247 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
+
+/**
+ * Settings for adaptive compile concurrency. Rather than always running a fixed number of
+ * compiles at once, the {@link Scheduler} checks the state of the machine before starting each
+ * job and only starts it if there is room:
+ * <ul>
+ *   <li>Below <code>minThreads</code> jobs, a job is started regardless of load.</li>
+ *   <li>Up to <code>maxThreads</code> jobs, a job is started while the load from everything else
+ *       on the machine leaves a CPU free (<code>maxLoad</code> is the load we aim for, per CPU).
+ *       Our own running jobs are taken off the load average so we don't just throttle
+ *       ourselves.</li>
+ *   <li>A job is never started if that would take the available memory below
+ *       <code>memoryFloor</code>, assuming each job needs <code>jobMemory</code>. The one
+ *       exception is when none of our jobs are running, as waiting won't free anything up
+ *       and the build would never finish.</li>
+ * </ul>
+ * The load and memory are read from <code>/proc/loadavg</code> and <code>/proc/meminfo</code>
+ * (MemAvailable). Where they aren't available (anything but Linux) it just runs up to
+ * <code>maxThreads</code> jobs.
+ */
+public class Adaptive
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	private static final File LOADAVG = new File( "/proc/loadavg" );
+	private static final File MEMINFO = new File( "/proc/meminfo" );
+
+	public static final long DEFAULT_MEMORY_FLOOR = 1024L * 1024 * 1024;
+	public static final long DEFAULT_JOB_MEMORY = 512L * 1024 * 1024;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int minThreads;
+	private int maxThreads; // 0 means use the threadCount of the task
+	private double maxLoad;
+	private long memoryFloor;
+	private long jobMemory;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	public Adaptive()
+	{
+		this.minThreads = 1;
+		this.maxThreads = 0;
+		this.maxLoad = 1.0;
+		this.memoryFloor = DEFAULT_MEMORY_FLOOR;
+		this.jobMemory = -1; // use the task's
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Decide if another job can be started right now.
+	 *
+	 * @param running The number of our jobs that are currently running
+	 * @param starting How many of those were started too recently to have used their memory yet
+	 * @param cpus The number of CPUs we have to work with
+	 * @return The reason the job has to wait, or <code>null</code> if it can start
+	 */
+	public String checkStart( int running, int starting, int cpus )
+	{
+		// never let the memory drop below the floor, but if nothing of ours is running
+		// we have to start something or we'll be waiting forever
+		long available = readMemoryAvailable();
+		long needed = jobMemory * (1+starting);
+		if( running > 0 && available >= 0 && available - needed < memoryFloor )
+			return "only "+(available/(1024*1024))+"M of memory available";
+
+		if( running < minThreads )
+			return null;
+
+		// take our own jobs off the load to see how busy everything else is keeping the box.
+		// the load average lags behind, but this will catch up as jobs finish
+		double load = readLoadAverage();
+		if( load < 0 )
+			return null;
+
+		double otherLoad = Math.max( 0.0, load - running );
+		double allowed = Math.floor( (cpus*maxLoad) - otherLoad );
+		if( running >= allowed )
+			return "load average is "+load;
+
+		return null;
+	}
+
+	/**
+	 * The fewest jobs to run at once, whatever the load (memory permitting). Defaults to 1.
+	 */
+	public void setMinThreads( int minThreads )
+	{
+		this.minThreads = minThreads;
+	}
+
+	public int getMinThreads()
+	{
+		return this.minThreads;
+	}
+
+	/**
+	 * The most jobs to run at once. Defaults to the threadCount of the task.
+	 */
+	public void setMaxThreads( int maxThreads )
+	{
+		this.maxThreads = maxThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return this.maxThreads;
+	}
+
+	/**
+	 * The load average to aim for, per CPU. Defaults to 1.0 (one job per CPU).
+	 */
+	public void setMaxLoad( double maxLoad )
+	{
+		this.maxLoad = maxLoad;
+	}
+
+	public double getMaxLoad()
+	{
+		return this.maxLoad;
+	}
+
+	/**
+	 * The least memory to leave available, e.g. 2G. Defaults to 1G.
+	 */
+	public void setMemoryFloor( String size )
+	{
+		this.memoryFloor = parseSize( "memoryFloor", size );
+	}
+
+	public long getMemoryFloor()
+	{
+		return this.memoryFloor;
+	}
+
+	/**
+	 * How much memory to assume each job needs, e.g. 1G. Defaults to the jobMemory of the task.
+	 */
+	public void setJobMemory( String size )
+	{
+		this.jobMemory = parseSize( "jobMemory", size );
+	}
+
+	public long getJobMemory()
+	{
+		return this.jobMemory;
+	}
+
+	/**
+	 * Use the given job memory (in bytes) if one hasn't been set on the element itself
+	 */
+	void setDefaultJobMemory( long jobMemory )
+	{
+		if( this.jobMemory <= 0 )
+			this.jobMemory = jobMemory;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long parseSize( String attribute, String size )
+	{
+		try
+		{
+			return CompileCache.parseSize( size );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid "+attribute+" \""+size+"\": "+nfe.getMessage() );
+		}
+	}
+
+	/**
+	 * @return The one minute load average, or -1 if we can't find it
+	 */
+	public static double readLoadAverage()
+	{
+		try
+		{
+			String contents = new String( Files.readAllBytes(LOADAVG.toPath()), UTF8 ).trim();
+			return Double.parseDouble( contents.split("\\s+")[0] );
+		}
+		catch( Exception e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The memory available for new processes in bytes (MemAvailable), or -1 if we
+	 *         can't find it
+	 */
+	public static long readMemoryAvailable()
+	{
+		try
+		{
+			List<String> lines = Files.readAllLines( MEMINFO.toPath(), UTF8 );
+			for( String line : lines )
+			{
+				// MemAvailable:   12345678 kB
+				if( line.startsWith("MemAvailable:") )
+				{
+					String[] parts = line.substring(13).trim().split( "\\s+" );
+					return Long.parseLong( parts[0] ) * 1024;
+				}
+			}
+		}
+		catch( Exception e )
+		{
+			// not on linux, or not a kernel new enough to tell us
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import org.apache.tools.ant.BuildException;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
+
+/**
+ * Settings for compiling several small source files with one run of the compiler, rather than
+ * starting a compiler for each of them. For very small files, starting the compiler can take
+ * longer than the compile itself. Unlike a {@link Unity} build, each file is still compiled on
+ * its own (to its own object file), so the files don't have to get along with each other.
+ * <p/>
+ * A batch is closed once it has <code>maxFiles</code> files in it, or adding the next file
+ * would take it over <code>maxSize</code> bytes of source. Files bigger than that are always
+ * compiled on their own. There are never fewer batches than jobs that can be run at once, so
+ * batching doesn't leave threads with nothing to do.
+ * <p/>
+ * If a batch fails, its files are compiled again one at a time so we know exactly which of
+ * them is broken.
+ */
+public class BatchCompile
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int DEFAULT_MAX_FILES = 16;
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int maxFiles;
+	private long maxSize;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public BatchCompile()
+	{
+		this.maxFiles = DEFAULT_MAX_FILES;
+		this.maxSize = DEFAULT_MAX_SIZE;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * The most files to compile in one run of the compiler. Defaults to 16.
+	 */
+	public void setMaxFiles( int maxFiles )
+	{
+		this.maxFiles = maxFiles;
+	}
+
+	public int getMaxFiles()
+	{
+		return this.maxFiles;
+	}
+
+	/**
+	 * The most source (in bytes, or with a K/M suffix) to compile in one run of the compiler.
+	 * Defaults to 64K.
+	 */
+	public void setMaxSize( String size )
+	{
+		try
+		{
+			this.maxSize = CompileCache.parseSize( size );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid maxSize \""+size+"\": "+nfe.getMessage() );
+		}
+	}
+
+	public long getMaxSize()
+	{
+		return this.maxSize;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
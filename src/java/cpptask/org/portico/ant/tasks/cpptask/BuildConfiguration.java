@@ -21,7 +21,9 @@ import java.util.List;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
 import org.portico.ant.tasks.utils.Arch;
 import org.portico.ant.tasks.utils.Platform;
 
@@ -34,11 +36,12 @@ import org.portico.ant.tasks.utils.Platform;
  * If you are working on a collection of things (such as {@link Define}s, you can append to the
  * current colleciton with the addXxx() methods.
  */
-public class BuildConfiguration
+public class BuildConfiguration implements Cloneable
 {
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	public static final long DEFAULT_RESPONSE_FILE_LIMIT = 32 * 1024;
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -51,23 +54,42 @@ public class BuildConfiguration
 	private String outputName;
 	private OutputType outputType;
 	private Arch outputArch;
+	private String variant; // null unless this is one of a number of builds of the same thing
 	
 	// Compiler and linker options
 	private CompilerType compilerType;
 	private String compilerArgs;
 	private String linkerArgs;
+	private long responseFileLimit; // longest command line to run without a response file
+	private boolean thinArchive;
+	private Linker linker;
+	private boolean linkerBenchmark;
+	private LinkTimeOptimization lto;
 
 	// Runtime properties
 	private String preCommand;
 	private boolean failOnError;
+	private boolean keepGoing;
 	private boolean incremental;
+	private IncrementalMode incrementalMode;
+	private String threadCountString; // resolved into threadCount on validation
 	private int threadCount; 
+	private long jobMemory;
+	private File cacheDirectory;
+	private long cacheMaxSize;
+	private String cacheRemote;
+	private int cacheTimeout;
 
 	// Collection properties
 	private List<FileSet> sourceFiles;
 	private List<IncludePath> includePaths;
 	private List<Define> defines;
 	private List<Library> libraries;
+	private PrecompiledHeader precompiledHeader;
+	private Unity unity;
+	private Adaptive adaptive;
+	private Matrix matrix;
+	private BatchCompile batchCompile;
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -84,24 +106,43 @@ public class BuildConfiguration
 		this.outputName        = null; // required
 		this.outputType        = OutputType.EXECUTABLE;
 		this.outputArch        = Arch.getOsArch();
+		this.variant           = null;
 		
 		// Compiler and linker options
 		this.compilerArgs = "";
 		this.linkerArgs   = "";
+		this.responseFileLimit = DEFAULT_RESPONSE_FILE_LIMIT;
+		this.thinArchive = false;
+		this.linker = Linker.DEFAULT;
+		this.linkerBenchmark = false;
+		this.lto = LinkTimeOptimization.NONE;
 		this.compilerType = Platform.getOsPlatform().isWindows() ? CompilerType.VC10 :
 		                                                           CompilerType.GCC;
 
 		// Runtime properties
 		this.preCommand = "";
 		this.incremental = true;
+		this.incrementalMode = IncrementalMode.TIMESTAMP;
 		this.failOnError = true;
+		this.keepGoing = false;
+		this.threadCountString = "1";
 		this.threadCount = 1;
+		this.jobMemory = Adaptive.DEFAULT_JOB_MEMORY;
+		this.cacheDirectory = null; // no cache
+		this.cacheMaxSize = CompileCache.DEFAULT_MAX_SIZE;
+		this.cacheRemote = null; // local only
+		this.cacheTimeout = CompileCache.DEFAULT_TIMEOUT;
 
 		// child types
 		this.sourceFiles  = new ArrayList<FileSet>();
 		this.includePaths = new ArrayList<IncludePath>();
 		this.defines      = new ArrayList<Define>();
 		this.libraries    = new ArrayList<Library>();
+		this.precompiledHeader = null;
+		this.unity = null;
+		this.adaptive = null;
+		this.matrix = null;
+		this.batchCompile = null;
 	}
 
 	//----------------------------------------------------------
@@ -139,6 +180,41 @@ public class BuildConfiguration
 		// make sure they've told us where things are going to go
 		if( this.workingDirectory == null )
 			throw new BuildException( "The attribute \"workingDirectory\" is required" );
+
+		// work out the thread count now we have everything it depends on
+		this.threadCount = resolveThreadCount( this.threadCountString );
+
+		if( this.adaptive != null )
+		{
+			adaptive.setDefaultJobMemory( this.jobMemory );
+			if( adaptive.getMinThreads() < 1 || adaptive.getMinThreads() > getMaxJobs() )
+			{
+				throw new BuildException( "The attribute \"minThreads\" of <adaptive> must be "+
+				                          "between 1 and the maximum ("+getMaxJobs()+")" );
+			}
+
+			if( adaptive.getMaxLoad() <= 0 )
+				throw new BuildException( "The attribute \"maxLoad\" of <adaptive> must be positive" );
+		}
+
+		if( this.unity != null && this.unity.getBatchSize() < 1 )
+			throw new BuildException( "The attribute \"batchSize\" of <unity> must be at least 1" );
+
+		if( this.batchCompile != null && this.batchCompile.getMaxFiles() < 1 )
+		{
+			throw new BuildException( "The attribute \"maxFiles\" of <batchcompile> must be at "+
+			                          "least 1" );
+		}
+
+		// if we're precompiling a header, it has to exist
+		if( this.precompiledHeader != null )
+		{
+			File header = this.precompiledHeader.getHeader();
+			if( header == null )
+				throw new BuildException( "The attribute \"header\" of <precompiledheader> is required" );
+			else if( header.isFile() == false )
+				throw new BuildException( "Precompiled header does not exist: "+header );
+		}
 	}
 	
 	///////////////////////////////////////////////////////////////////////////////////////
@@ -174,7 +250,8 @@ public class BuildConfiguration
 	 */
 	public File getObjectDirectory()
 	{
-		File directory = new File( this.workingDirectory, "obj/"+getOutputArch().toString() );
+		String name = variant == null ? getOutputArch().toString() : variant;
+		File directory = new File( this.workingDirectory, "obj/"+name );
 		directory.mkdirs();
 		return directory;
 	}
@@ -193,12 +270,33 @@ public class BuildConfiguration
 		if( this.outputDirectory == null )
 		{
 			this.outputDirectory = new File( this.workingDirectory, "complete" );
+			if( this.variant != null )
+				this.outputDirectory = new File( this.outputDirectory, variant );
+
 			this.outputDirectory.mkdirs();
 		}
 		
 		return this.outputDirectory;
 	}
 
+	/**
+	 * Make this one of a number of builds of the same thing (such as a cell of a
+	 * {@link Matrix}). The objects go in their own directory named after the variant
+	 * (rather than the architecture) and the output goes in a directory of that name under
+	 * the usual output directory, so the builds don't overwrite each other.
+	 */
+	public void setVariant( String variant )
+	{
+		this.variant = variant;
+		if( this.outputDirectory != null )
+			this.outputDirectory = new File( this.outputDirectory, variant );
+	}
+
+	public String getVariant()
+	{
+		return this.variant;
+	}
+
 	public void setOutputName( String name )
 	{
 		this.outputName = name;
@@ -239,37 +337,123 @@ public class BuildConfiguration
 	}
 	
 	/**
-	 * Set the number of threads that should be used for a parallel build. If set to "auto" it
-	 * will use the same number of threads as the system has cores.
+	 * Set the number of threads that should be used for a parallel build. This is a number, or
+	 * "auto" to work it out from the CPUs and memory we have (see {@link #getAutoThreadCount()}).
+	 * Either can be multiplied by a factor to run more (or fewer) jobs than that, such as
+	 * "auto*1.5" for a build that spends a lot of time waiting on I/O. The value is worked out
+	 * when the configuration is validated.
 	 */
 	public void setThreadCount( String threadString )
 	{
-		threadString = threadString.toLowerCase();
-		int systemProcessors = Runtime.getRuntime().availableProcessors();
-		if( threadString.equals("auto") )
-		{
-			this.threadCount = systemProcessors;
-		}
-		else 
-		{
-			int count = Integer.parseInt( threadString );
-			if( count > systemProcessors )
-				count = systemProcessors;
-			
-			this.threadCount = count;
-		}
+		this.threadCountString = threadString;
 	}
 
 	/**
-	 * Returns the number of threads to use in any parallel builds. Defaults to 1. If set to
-	 * "auto", it will use the number of CPUs available to the system.
-	 * @return
+	 * Returns the number of threads to use in any parallel builds. Defaults to 1.
 	 */
 	public int getThreadCount()
 	{
 		return this.threadCount;
 	}
 
+	/**
+	 * How much memory to assume each compile job needs when working out the "auto" thread
+	 * count, in bytes. Defaults to 512M.
+	 */
+	public void setJobMemory( long jobMemory )
+	{
+		this.jobMemory = jobMemory;
+	}
+
+	public long getJobMemory()
+	{
+		return this.jobMemory;
+	}
+
+	/**
+	 * Command lines longer than this many characters have their arguments put in a response
+	 * file (<code>@file</code>) rather than passed directly. Zero means always use one.
+	 */
+	public void setResponseFileLimit( long responseFileLimit )
+	{
+		this.responseFileLimit = responseFileLimit;
+	}
+
+	public long getResponseFileLimit()
+	{
+		return this.responseFileLimit;
+	}
+
+	/**
+	 * Should static libraries be thin archives, which refer to their object files rather than
+	 * holding copies of them?
+	 */
+	public void setThinArchive( boolean thinArchive )
+	{
+		this.thinArchive = thinArchive;
+	}
+
+	public boolean isThinArchive()
+	{
+		return this.thinArchive;
+	}
+
+	public void setLinker( Linker linker )
+	{
+		this.linker = linker;
+	}
+
+	public Linker getLinker()
+	{
+		return this.linker;
+	}
+
+	/**
+	 * Should we link again with each of the other linkers we can find, and report how long
+	 * each of them took?
+	 */
+	public void setLinkerBenchmark( boolean linkerBenchmark )
+	{
+		this.linkerBenchmark = linkerBenchmark;
+	}
+
+	public boolean isLinkerBenchmark()
+	{
+		return this.linkerBenchmark;
+	}
+
+	public void setLto( LinkTimeOptimization lto )
+	{
+		this.lto = lto;
+	}
+
+	public LinkTimeOptimization getLto()
+	{
+		return this.lto;
+	}
+
+	/**
+	 * Turn a thread count ("4", "auto", "auto*1.5", "8*2") into a number of threads. There is
+	 * always at least one.
+	 *
+	 * @throws BuildException If the thread count isn't in a form we understand
+	 */
+	private int resolveThreadCount( String threadString ) throws BuildException
+	{
+		return resolveThreadCount( threadString, task, jobMemory );
+	}
+
+	/**
+	 * The thread count to use for "auto". This is the number of CPUs we can use, taking any
+	 * container limits (cgroup CPU quota and cpuset) into account, but no more than the
+	 * number of jobs that fit in the memory we're allowed (again taking the cgroup limit into
+	 * account) at {@link #getJobMemory()} each.
+	 */
+	public int getAutoThreadCount()
+	{
+		return getAutoThreadCount( task, jobMemory );
+	}
+
 	///////////////////////////////////////////////////////////////////////////////////////
 	///////////////////////////////// Compiler Properties /////////////////////////////////
 	///////////////////////////////////////////////////////////////////////////////////////
@@ -327,6 +511,20 @@ public class BuildConfiguration
 		return failOnError;
 	}
 
+	/**
+	 * If true, keep compiling the rest of the files when one fails and report all the failures
+	 * at the end. If false (the default), the first failure stops the compile.
+	 */
+	public void setKeepGoing( boolean keepGoing )
+	{
+		this.keepGoing = keepGoing;
+	}
+
+	public boolean isKeepGoing()
+	{
+		return keepGoing;
+	}
+
 	public void setIncremental( boolean incremental )
 	{
 		this.incremental = incremental;
@@ -337,6 +535,81 @@ public class BuildConfiguration
 		return incremental;
 	}
 
+	public void setIncrementalMode( IncrementalMode incrementalMode )
+	{
+		this.incrementalMode = incrementalMode;
+	}
+
+	/**
+	 * How incremental builds decide whether an object is up to date. Defaults to
+	 * {@link IncrementalMode#TIMESTAMP}.
+	 */
+	public IncrementalMode getIncrementalMode()
+	{
+		return incrementalMode;
+	}
+
+	public void setCacheDirectory( File cacheDirectory )
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * The directory of the local {@link CompileCache}, or <code>null</code> if compiled objects
+	 * shouldn't be cached.
+	 */
+	public File getCacheDirectory()
+	{
+		// a remote cache needs a local one in front of it, put that in the working
+		// directory if they haven't said where it should go
+		if( this.cacheDirectory == null && this.cacheRemote != null )
+			this.cacheDirectory = new File( this.workingDirectory, "cache" );
+
+		return this.cacheDirectory;
+	}
+
+	public void setCacheMaxSize( long cacheMaxSize )
+	{
+		this.cacheMaxSize = cacheMaxSize;
+	}
+
+	/**
+	 * The size in bytes the compile cache is kept under. Defaults to
+	 * {@link CompileCache#DEFAULT_MAX_SIZE}.
+	 */
+	public long getCacheMaxSize()
+	{
+		return this.cacheMaxSize;
+	}
+
+	public void setCacheRemote( String cacheRemote )
+	{
+		this.cacheRemote = cacheRemote;
+	}
+
+	/**
+	 * The location (http URL or shared directory) of the remote compile cache backend, or
+	 * <code>null</code> if there isn't one.
+	 */
+	public String getCacheRemote()
+	{
+		return this.cacheRemote;
+	}
+
+	public void setCacheTimeout( int cacheTimeout )
+	{
+		this.cacheTimeout = cacheTimeout;
+	}
+
+	/**
+	 * The longest time in milliseconds to wait on the remote compile cache before giving up and
+	 * compiling. Defaults to {@link CompileCache#DEFAULT_TIMEOUT}.
+	 */
+	public int getCacheTimeout()
+	{
+		return this.cacheTimeout;
+	}
+
 	///////////////////////////////////////////////////////////////////////////////////////
 	///////////////////////////////////// Collections /////////////////////////////////////
 	///////////////////////////////////////////////////////////////////////////////////////
@@ -460,6 +733,115 @@ public class BuildConfiguration
 		this.libraries.add( additional );
 	}
 
+	////////// Precompiled Header //////////
+	/**
+	 * The header to precompile and use for every file in the compile, or <code>null</code> if
+	 * there isn't one.
+	 */
+	public PrecompiledHeader getPrecompiledHeader()
+	{
+		return this.precompiledHeader;
+	}
+
+	public void setPrecompiledHeader( PrecompiledHeader precompiledHeader )
+	{
+		this.precompiledHeader = precompiledHeader;
+	}
+
+	////////// Unity Build //////////
+	/**
+	 * The settings for a unity build, or <code>null</code> if each source file should be
+	 * compiled on its own.
+	 */
+	public Unity getUnity()
+	{
+		return this.unity;
+	}
+
+	public void setUnity( Unity unity )
+	{
+		this.unity = unity;
+	}
+
+	////////// Adaptive Concurrency //////////
+	/**
+	 * The settings for adapting the number of compile jobs to the load on the machine, or
+	 * <code>null</code> to always run {@link #getThreadCount()} jobs.
+	 */
+	public Adaptive getAdaptive()
+	{
+		return this.adaptive;
+	}
+
+	public void setAdaptive( Adaptive adaptive )
+	{
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * @return The most compile jobs to run at once: the maximum of the adaptive settings if
+	 *         there is one, otherwise the thread count
+	 */
+	public int getMaxJobs()
+	{
+		if( adaptive != null && adaptive.getMaxThreads() > 0 )
+			return adaptive.getMaxThreads();
+		else
+			return this.threadCount;
+	}
+
+	/**
+	 * @return The settings for compiling several files with one run of the compiler, or
+	 *         <code>null</code> to compile each file on its own
+	 */
+	public BatchCompile getBatchCompile()
+	{
+		return this.batchCompile;
+	}
+
+	public void setBatchCompile( BatchCompile batchCompile )
+	{
+		this.batchCompile = batchCompile;
+	}
+
+	/**
+	 * @return The compilers, architectures and build types to build this configuration for,
+	 *         or <code>null</code> to just build it once as it is
+	 */
+	public Matrix getMatrix()
+	{
+		return this.matrix;
+	}
+
+	public void setMatrix( Matrix matrix )
+	{
+		this.matrix = matrix;
+	}
+
+	/**
+	 * Make a copy of this configuration for the given task to build, such as for one cell of a
+	 * {@link Matrix}. The lists of things (sources, defines, ...) are copied so they can be
+	 * changed without affecting this one, but the things in them are shared.
+	 */
+	public BuildConfiguration copy( CppTask task )
+	{
+		try
+		{
+			BuildConfiguration copy = (BuildConfiguration)super.clone();
+			copy.task = task;
+			copy.sourceFiles = new ArrayList<FileSet>( this.sourceFiles );
+			copy.includePaths = new ArrayList<IncludePath>( this.includePaths );
+			copy.defines = new ArrayList<Define>( this.defines );
+			copy.libraries = new ArrayList<Library>( this.libraries );
+			copy.matrix = null;
+			return copy;
+		}
+		catch( CloneNotSupportedException cnse )
+		{
+			throw new BuildException( cnse );
+		}
+	}
+
 	////////////////////////////////////////////////////////////////////////////////////////
 	//////////////////////////////// Private Helper Methods ////////////////////////////////
 	////////////////////////////////////////////////////////////////////////////////////////
@@ -471,4 +853,57 @@ public class BuildConfiguration
 	//----------------------------------------------------------
 	//                     STATIC METHODS
 	//----------------------------------------------------------
+	/**
+	 * Turn a thread count ("4", "auto", "auto*1.5", "8*2") into a number of threads, with
+	 * "auto" allowing the given memory for each job. There is always at least one.
+	 *
+	 * @throws BuildException If the thread count isn't in a form we understand
+	 */
+	public static int resolveThreadCount( String threadString, Task task, long jobMemory )
+		throws BuildException
+	{
+		try
+		{
+			String value = threadString.trim().toLowerCase();
+			double factor = 1.0;
+			int star = value.indexOf( '*' );
+			if( star != -1 )
+			{
+				factor = Double.parseDouble( value.substring(star+1).trim() );
+				value = value.substring(0,star).trim();
+			}
+
+			int count = value.equals("auto") ? getAutoThreadCount(task,jobMemory)
+			                                 : Integer.parseInt(value);
+			if( count < 1 || factor <= 0 )
+				throw new NumberFormatException( "must be positive" );
+
+			return Math.max( 1, (int)Math.round(count*factor) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid threadCount \""+threadString+"\", expected a "+
+			                          "number or \"auto\", optionally times a factor (such as "+
+			                          "\"auto*1.5\")" );
+		}
+	}
+
+	/**
+	 * The thread count to use for "auto" when each job needs the given memory. See
+	 * {@link #getAutoThreadCount()}.
+	 */
+	public static int getAutoThreadCount( Task task, long jobMemory )
+	{
+		ResourceLimits limits = new ResourceLimits();
+		int cpus = limits.getCpuCount();
+		long memory = limits.getMemoryLimit();
+		int count = cpus;
+		if( memory > 0 )
+			count = (int)Math.max( 1, Math.min(cpus,memory/jobMemory) );
+
+		task.log( "Automatic thread count: "+count+" ("+cpus+" CPUs, "+
+		          (memory > 0 ? (memory/(1024*1024))+"M" : "unknown")+" memory)",
+		          Project.MSG_VERBOSE );
+		return count;
+	}
 }
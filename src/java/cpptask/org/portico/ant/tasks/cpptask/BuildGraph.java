@@ -0,0 +1,366 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Builds a number of {@link BuildConfiguration}s at once on one shared {@link Scheduler}, each
+ * of which may depend on others being linked before it can be. This is what does the work for
+ * a {@link CppProject} (a target per build) and for a <cpptask> with a {@link Matrix} (a cell
+ * per build).
+ * <p/>
+ * The compiles of every build go onto the scheduler straight away (the builds something
+ * depends on first, and the longest files of each build first). A build is linked as soon as
+ * all of its own files are compiled and the builds it depends on are linked, and links go to
+ * the front of the queue as other builds may be waiting on them.
+ * <p/>
+ * Only compilers that are a {@link ScheduledCompiler} (gcc) can be split up like this. Builds
+ * using another compiler are run in a single job (compile and link) once the builds they
+ * depend on are linked.
+ */
+public class BuildGraph
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Task task;
+	private Map<String,Build> added;  // in the order they were added
+	private Map<String,Build> builds; // in the order to start them, dependencies first
+
+	private Scheduler scheduler;
+	private int remaining;            // builds not yet linked or failed, guarded by this
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param task The task to log against
+	 */
+	public BuildGraph( Task task )
+	{
+		this.task = task;
+		this.added = new LinkedHashMap<String,Build>();
+		this.builds = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Add a build to the graph.
+	 *
+	 * @param name The name of the build, unique in the graph
+	 * @param configuration What to build. It should already have been validated.
+	 * @param depends The names of the builds that have to be linked before this one can be
+	 * @throws BuildException If there is already a build with the given name
+	 */
+	public void addBuild( String name, BuildConfiguration configuration, List<String> depends )
+		throws BuildException
+	{
+		if( added.containsKey(name) )
+			throw new BuildException( "There is more than one target called "+name );
+
+		added.put( name, new Build(name,configuration,depends) );
+	}
+
+	/**
+	 * @return The number of builds in the graph
+	 */
+	public int size()
+	{
+		return added.size();
+	}
+
+	/**
+	 * Check that everything the builds depend on exists and that there are no cycles, and put
+	 * them in the order to start them in.
+	 *
+	 * @throws BuildException If a build depends on something that doesn't exist or on itself
+	 */
+	public void validate() throws BuildException
+	{
+		for( Build build : added.values() )
+		{
+			for( String dependency : build.depends )
+			{
+				if( added.containsKey(dependency) == false )
+				{
+					throw new BuildException( "Target "+build.name+" depends on "+dependency+
+					                          ", which doesn't exist" );
+				}
+			}
+		}
+
+		// order the builds so everything comes after what it depends on
+		this.builds = new LinkedHashMap<String,Build>();
+		for( Build build : added.values() )
+			order( build, new HashSet<String>() );
+	}
+
+	/**
+	 * Add the given build after everything it depends on
+	 *
+	 * @param visiting The builds we're part way through adding, to spot cycles
+	 */
+	private void order( Build build, Set<String> visiting )
+	{
+		if( builds.containsKey(build.name) )
+			return;
+
+		if( visiting.add(build.name) == false )
+			throw new BuildException( "Target "+build.name+" depends on itself" );
+
+		for( String dependency : build.depends )
+			order( added.get(dependency), visiting );
+
+		visiting.remove( build.name );
+		for( String dependency : build.depends )
+			builds.get(dependency).dependents.add( build );
+
+		builds.put( build.name, build );
+	}
+
+	/**
+	 * Start the compiles of every build on the given scheduler, then wait until every build is
+	 * either linked or has failed, or the scheduler has been cancelled. The graph has to have
+	 * been validated first.
+	 *
+	 * @throws BuildException If any of the builds failed
+	 */
+	public void build( Scheduler scheduler ) throws BuildException
+	{
+		this.scheduler = scheduler;
+
+		// everything has to be counted before anything starts, as they finish as they please
+		synchronized( this )
+		{
+			this.remaining = builds.size();
+			for( Build build : builds.values() )
+			{
+				build.compiler = CompilerType.newInstance( build.configuration.getCompilerType() );
+				build.waitingFor = build.depends.size();
+				if( build.compiler instanceof ScheduledCompiler )
+					build.waitingFor++;
+			}
+		}
+
+		try
+		{
+			for( Build build : builds.values() )
+			{
+				if( build.compiler instanceof ScheduledCompiler )
+					startCompile( build );
+				else if( build.depends.isEmpty() )
+					submitLink( build );
+			}
+
+			synchronized( this )
+			{
+				while( remaining > 0 && scheduler.isCancelled() == false )
+				{
+					try
+					{
+						wait( 500 );
+					}
+					catch( InterruptedException ie )
+					{ /* just carry on */ }
+				}
+			}
+		}
+		finally
+		{
+			try
+			{
+				// throws the first failure, or all of them if we kept going
+				scheduler.waitForCompletion();
+			}
+			finally
+			{
+				// save what we can of any build that was stopped part way through
+				for( Build build : builds.values() )
+				{
+					if( build.jobs != null && build.compileFinished == false )
+						((ScheduledCompiler)build.compiler).finishCompile();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Submit the compiles of the given build, and have it linked once they're done (as long
+	 * as everything it depends on has been linked by then).
+	 */
+	private void startCompile( final Build build )
+	{
+		final ScheduledCompiler compiler = (ScheduledCompiler)build.compiler;
+		build.jobs = new JobGroup( scheduler );
+		try
+		{
+			compiler.startCompile( build.configuration, build.jobs );
+		}
+		catch( BuildException be )
+		{
+			scheduler.failed( build.name, be );
+			buildFailed( build );
+			return;
+		}
+
+		build.jobs.close( new Runnable()
+		{
+			public void run()
+			{
+				compiler.finishCompile();
+				build.compileFinished = true;
+				if( build.jobs.hasFailed() )
+					buildFailed( build );
+				else
+					dependencyReady( build );
+			}
+		});
+	}
+
+	/**
+	 * One of the things the given build was waiting on before it could link (its own compile
+	 * or a build it depends on) is done. If that was the last one, submit the link.
+	 */
+	private synchronized void dependencyReady( Build build )
+	{
+		if( build.finished )
+			return;
+
+		build.waitingFor--;
+		if( build.waitingFor == 0 )
+			submitLink( build );
+	}
+
+	/**
+	 * Link the given build, or for a compiler that can't be split up, build the whole thing.
+	 * It goes to the front of the queue, as other builds may be waiting on it.
+	 */
+	private void submitLink( final Build build )
+	{
+		String name = build.name;
+		if( build.compiler instanceof ScheduledCompiler )
+			name = name + " (link)";
+
+		scheduler.submitFirst( name, new Runnable()
+		{
+			public void run()
+			{
+				boolean succeeded = false;
+				try
+				{
+					if( build.compiler instanceof ScheduledCompiler )
+						((ScheduledCompiler)build.compiler).link();
+					else
+						build.compiler.runCompiler( build.configuration );
+
+					succeeded = true;
+				}
+				finally
+				{
+					if( succeeded )
+						buildLinked( build );
+					else
+						buildFailed( build );
+				}
+			}
+		});
+	}
+
+	private synchronized void buildLinked( Build build )
+	{
+		build.finished = true;
+		remaining--;
+		for( Build dependent : build.dependents )
+			dependencyReady( dependent );
+
+		notifyAll();
+	}
+
+	/**
+	 * The given build failed, so nothing that depends on it can be linked
+	 */
+	private synchronized void buildFailed( Build build )
+	{
+		if( build.finished )
+			return;
+
+		build.finished = true;
+		remaining--;
+		for( Build dependent : build.dependents )
+		{
+			if( dependent.finished == false && scheduler.isCancelled() == false )
+			{
+				task.log( "Not linking "+dependent.name+", it depends on "+build.name+
+				          " which failed", Project.MSG_WARN );
+			}
+
+			buildFailed( dependent );
+		}
+
+		notifyAll();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////// Private Inner Class: Build ///////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private class Build
+	{
+		private String name;
+		private BuildConfiguration configuration;
+		private List<String> depends;
+		private List<Build> dependents; // the builds that depend on this one
+		private Compiler compiler;
+		private JobGroup jobs;          // null if the compiler can't be split up
+
+		// guarded by the graph
+		private int waitingFor;         // for our compile and the builds we depend on
+		private boolean finished;       // linked or failed
+		private volatile boolean compileFinished;
+
+		public Build( String name, BuildConfiguration configuration, List<String> depends )
+		{
+			this.name = name;
+			this.configuration = configuration;
+			this.depends = depends;
+			this.dependents = new ArrayList<Build>();
+			this.compiler = null;
+			this.jobs = null;
+			this.waitingFor = 0;
+			this.finished = false;
+			this.compileFinished = false;
+		}
+	}
+}
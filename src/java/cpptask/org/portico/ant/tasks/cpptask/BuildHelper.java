@@ -16,12 +16,24 @@
 package org.portico.ant.tasks.cpptask;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
+import org.portico.ant.tasks.cpptask.state.BuildState;
+import org.portico.ant.tasks.cpptask.state.ContentHasher;
+import org.portico.ant.tasks.cpptask.state.FileRecord;
 import org.portico.ant.tasks.utils.Platform;
 
 
@@ -47,6 +59,11 @@ public class BuildHelper
 	//                   INSTANCE VARIABLES
 	//----------------------------------------------------------
 	private BuildConfiguration configuration;
+	private BuildState buildState;
+	private ContentHasher contentHasher;
+	private IncludeScanner includeScanner;
+	private Map<String,Long> timestamps; // cache of file modification times for this run
+	private List<File> compileUnits;     // what we actually compile, see getCompileUnits()
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -54,6 +71,11 @@ public class BuildHelper
 	public BuildHelper( BuildConfiguration configuration )
 	{
 		this.configuration = configuration;
+		this.buildState = null; // lazy loaded
+		this.contentHasher = null; // lazy loaded
+		this.includeScanner = null; // lazy loaded
+		this.timestamps = new HashMap<String,Long>();
+		this.compileUnits = null; // lazy loaded
 	}
 
 	//----------------------------------------------------------
@@ -90,13 +112,37 @@ public class BuildHelper
 	 * If incremental compiling is NOT enabled, this method will just return all the source files
 	 * so that they are all recompiled. If it IS enabled, any source file that has a timestamp
 	 * later than the .o file of the same name will need to be recompiled (as it has been modified
-	 * in the mean time) and will be returned. 
-	 * 
+	 * in the mean time) and will be returned. Where the compiler has told us which headers a
+	 * source file includes (see {@link #getBuildState()}), the file is also recompiled if any
+	 * of those headers is newer than the .o file. Where it hasn't, the headers are found with
+	 * the {@link IncludeScanner} instead.
+	 * <p/>
+	 * If the {@link IncrementalMode} is {@link IncrementalMode#CONTENT}, timestamps are ignored
+	 * and a file is only recompiled if the contents of it or its headers are different to what
+	 * they were when the .o file was generated.
+	 *
 	 * @param buildDirectory The directory where compiled files will exist. This is used to check
 	 *                       timestamps of source files against existing compiled versions if
 	 *                       incremental building is used. 
 	 */
 	public File[] getFilesThatNeedCompiling( File buildDirectory )
+	{
+		return getFilesThatNeedCompiling( buildDirectory, null );
+	}
+
+	/**
+	 * The same as {@link #getFilesThatNeedCompiling(File)}, except that any object that was
+	 * generated with a compile command that has a different fingerprint to the one given will
+	 * also be recompiled. This catches changes to compiler arguments, defines, include paths
+	 * and the like, which leave the sources untouched. Objects that were built before we had
+	 * fingerprints adopt the given one if they are otherwise up to date.
+	 *
+	 * @param buildDirectory The directory where compiled files will exist
+	 * @param commandFingerprint Fingerprint of the current compile command (see
+	 *                           {@link ContentHasher#hashCommand(String[])}), or null to skip
+	 *                           the check
+	 */
+	public File[] getFilesThatNeedCompiling( File buildDirectory, String commandFingerprint )
 	{
 		// used for logging
 		Task task = configuration.getTask();
@@ -104,26 +150,7 @@ public class BuildHelper
 		////////////////////////////////////////////////////////////////////
 		// generate a list of ALL files, regardless of incremental status //
 		////////////////////////////////////////////////////////////////////
-		ArrayList<File> sourceFiles = new ArrayList<File>();
-		for( FileSet set : configuration.getSourceFiles() )
-		{
-			for( File file : listFiles(set) )
-			{
-				// check that is it a source file
-				if( isSourceFile(file) == false )
-				{
-					task.log( "Skipping " + file + ", not a source file", Project.MSG_DEBUG );
-				}
-				else if( file.canRead() == false )
-				{
-					task.log( "Skipping " + file + ", can't find/read it", Project.MSG_DEBUG );
-				}
-				else
-				{
-					sourceFiles.add( file );
-				}
-			}
-		}
+		ArrayList<File> sourceFiles = new ArrayList<File>( getCompileUnits() );
 
 		/////////////////////////////////////////////////////////////////////
 		// if it is an incremental compile, remove files that are uptodate //
@@ -136,26 +163,20 @@ public class BuildHelper
 			ArrayList<File> uptodate = new ArrayList<File>();
 			task.log( "Starting up-to-date analysis for " + sourceFiles.size() + " source files." );
 
+			// hash everything up front in parallel, the checks below then hit the cache
+			if( configuration.getIncrementalMode() == IncrementalMode.CONTENT )
+				hashInputs( sourceFiles );
+
 			// check each file to see if it needs to be compiled
 			for( File sourceFile : sourceFiles )
 			{
-				// get the name of the file without the suffix
-				String localName = sourceFile.getName();
-				localName = localName.substring( 0, localName.indexOf('.') );
-				
-				// check for the presence of an ".o" file in the target directory
-				File[] ofiles = buildDirectory.listFiles( new Filter(localName) );
-				if( ofiles.length != 0 )
+				File ofile = getOFile( buildDirectory, sourceFile );
+				if( isUpToDate(sourceFile,ofile,commandFingerprint) )
 				{
-					// an .o file exists, check modification times
-					File ofile = ofiles[0];
-					if( ofile.lastModified() > sourceFile.lastModified() )
-					{
-						// the ofile is older than the source file, so it hasn't
-						// been changed since the last time we compiled, we can skip it
-						task.log( "Skipping file (up to date): " + sourceFile, Project.MSG_DEBUG );
-						uptodate.add( sourceFile );
-					}
+					// nothing the ofile was built from has changed since the last time
+					// we compiled, so we can skip it
+					task.log( "Skipping file (up to date): " + sourceFile, Project.MSG_DEBUG );
+					uptodate.add( sourceFile );
 				}
 			}
 			
@@ -170,6 +191,323 @@ public class BuildHelper
 		return sourceFiles.toArray( new File[0] );
 	}
 
+	/**
+	 * Sort the given files so that the ones we expect to take longest to compile come first.
+	 * Starting the long jobs first stops one big file that happens to be picked up late from
+	 * holding up the end of the build while every other thread sits idle (longest processing
+	 * time first scheduling).
+	 * <p/>
+	 * The expected time for a file is how long it took the last time it was compiled (see
+	 * {@link FileRecord#getCompileTime()}). Files we have no history for get an estimate based
+	 * on their size (and the size of everything they included last time, if we know that),
+	 * using the average compile rate of the files we do have history for.
+	 *
+	 * @param files The files to sort
+	 * @return A new array with the files in the order they should be compiled
+	 */
+	public File[] sortByExpectedCompileTime( File[] files )
+	{
+		// work out the input size of each file, and the rate we compile at
+		final Map<File,Long> expected = new HashMap<File,Long>();
+		Map<String,Long> sizes = new HashMap<String,Long>();
+		long knownTime = 0;
+		long knownSize = 0;
+		for( File file : files )
+		{
+			long size = getInputSize( file, sizes );
+			FileRecord record = getBuildState().getRecord( file );
+			if( record != null && record.getCompileTime() > 0 )
+			{
+				expected.put( file, record.getCompileTime() );
+				knownTime += record.getCompileTime();
+				knownSize += size;
+			}
+			else
+			{
+				expected.put( file, -size ); // fill in once we know the rate
+			}
+		}
+
+		// estimate the files we don't know about. with no history at all, the size on its
+		// own is enough to put them in order
+		double rate = knownSize == 0 ? 1.0 : (double)knownTime / (double)knownSize;
+		for( Map.Entry<File,Long> entry : expected.entrySet() )
+		{
+			if( entry.getValue() <= 0 )
+				entry.setValue( (long)Math.ceil(-entry.getValue() * rate) );
+		}
+
+		File[] sorted = Arrays.copyOf( files, files.length );
+		Arrays.sort( sorted, new Comparator<File>()
+		{
+			public int compare( File one, File two )
+			{
+				return Long.compare( expected.get(two), expected.get(one) );
+			}
+		});
+
+		return sorted;
+	}
+
+	/**
+	 * The number of bytes the compiler has to read for the given source file: the file itself,
+	 * and the files it included last time it was compiled (if we know).
+	 */
+	private long getInputSize( File sourceFile, Map<String,Long> sizes )
+	{
+		long size = sourceFile.length();
+		FileRecord record = getBuildState().getRecord( sourceFile );
+		if( record == null )
+			return size;
+
+		for( String dependency : record.getDependencies() )
+		{
+			Long dependencySize = sizes.get( dependency );
+			if( dependencySize == null )
+			{
+				dependencySize = new File(dependency).length();
+				sizes.put( dependency, dependencySize );
+			}
+
+			size += dependencySize;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Get all the files that make up the compile. Normally this is just all the readable source
+	 * files in the filesets. For a unity build (see {@link Unity}) it is the generated batch
+	 * files, plus any sources that can't be batched. This is worked out once and then reused
+	 * for the rest of the build.
+	 */
+	public List<File> getCompileUnits()
+	{
+		if( this.compileUnits != null )
+			return this.compileUnits;
+
+		Task task = configuration.getTask();
+		List<File> sourceFiles = new ArrayList<File>();
+		for( FileSet set : configuration.getSourceFiles() )
+		{
+			for( File file : listFiles(set) )
+			{
+				// check that is it a source file
+				if( isSourceFile(file) == false )
+				{
+					task.log( "Skipping " + file + ", not a source file", Project.MSG_DEBUG );
+				}
+				else if( file.canRead() == false )
+				{
+					task.log( "Skipping " + file + ", can't find/read it", Project.MSG_DEBUG );
+				}
+				else
+				{
+					sourceFiles.add( file );
+				}
+			}
+		}
+
+		if( configuration.getUnity() == null )
+		{
+			this.compileUnits = sourceFiles;
+			return this.compileUnits;
+		}
+
+		try
+		{
+			File unityDirectory = new File( configuration.getObjectDirectory(), "unity" );
+			UnityBatcher batcher = new UnityBatcher( unityDirectory, configuration.getUnity() );
+			this.compileUnits = batcher.batch( sourceFiles );
+			task.log( "Unity build: "+sourceFiles.size()+" source files in "+
+			          compileUnits.size()+" compile units", Project.MSG_VERBOSE );
+			return this.compileUnits;
+		}
+		catch( IOException ioex )
+		{
+			throw new BuildException( "Problem generating unity build files: "+
+			                          ioex.getMessage(), ioex );
+		}
+	}
+
+	/**
+	 * Checks to see if the given object file is up to date with respect to the source file it
+	 * was compiled from, using the configured {@link IncrementalMode}. If a command fingerprint
+	 * is given, the object must also have been built with a command that has that fingerprint.
+	 * This works for any output generated from a single input that is recorded in the build
+	 * state with {@link #recordCompiled(File, List, String)}, not just object files.
+	 */
+	public boolean isUpToDate( File sourceFile, File objectFile, String commandFingerprint )
+	{
+		FileRecord record = getBuildState().getRecord( sourceFile );
+		if( commandFingerprint != null && record != null &&
+		    record.getCommandFingerprint() != null &&
+		    record.getCommandFingerprint().equals(commandFingerprint) == false )
+		{
+			configuration.getTask().log( "Compile command changed for "+sourceFile.getName(),
+			                             Project.MSG_VERBOSE );
+			return false;
+		}
+
+		boolean uptodate = false;
+		if( configuration.getIncrementalMode() == IncrementalMode.CONTENT )
+			uptodate = isContentUpToDate( sourceFile, objectFile );
+		else
+			uptodate = isTimestampUpToDate( sourceFile, objectFile );
+
+		// objects from before we recorded fingerprints adopt the current one
+		if( uptodate && commandFingerprint != null )
+		{
+			record = getBuildState().getOrCreateRecord( sourceFile );
+			if( record.getCommandFingerprint() == null )
+				record.setCommandFingerprint( commandFingerprint );
+		}
+
+		return uptodate;
+	}
+
+	/**
+	 * Checks to see if the given object file is up to date with respect to the source file it
+	 * was compiled from. For this to be the case the object file must exist and be newer than
+	 * the source file. Each of the files the source depends on (see {@link #getDependencies(File)})
+	 * must also exist and be older than the object file.
+	 */
+	private boolean isTimestampUpToDate( File sourceFile, File objectFile )
+	{
+		long objectTime = objectFile.lastModified();
+		if( objectTime == 0 || objectTime <= sourceFile.lastModified() )
+			return false;
+
+		for( String dependency : getDependencies(sourceFile) )
+		{
+			// a dependency that no longer exists (deleted or moved header) means we
+			// need to compile again, if only so the user finds out about it
+			long dependencyTime = getTimestamp( dependency );
+			if( dependencyTime == 0 || dependencyTime >= objectTime )
+			{
+				configuration.getTask().log( "Dependency changed: "+dependency+" (needed by "+
+				                             sourceFile.getName()+")", Project.MSG_VERBOSE );
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks to see if the given object file is up to date by comparing the digest of the
+	 * current contents of its source file and dependencies with the digest that was recorded
+	 * when the object was generated. Timestamps don't come into it, so touching a file or
+	 * switching branches back and forth won't cause a recompile.
+	 * <p/>
+	 * If there is no recorded digest (for example, the first build after switching to content
+	 * mode) we fall back to the timestamp check. If that says the object is current we adopt
+	 * the current contents as the baseline for next time.
+	 */
+	private boolean isContentUpToDate( File sourceFile, File objectFile )
+	{
+		if( objectFile.exists() == false )
+			return false;
+
+		FileRecord record = getBuildState().getRecord( sourceFile );
+		if( record == null || record.getInputDigest() == null )
+		{
+			if( isTimestampUpToDate(sourceFile,objectFile) == false )
+				return false;
+
+			recordInputDigest( sourceFile );
+			return true;
+		}
+
+		try
+		{
+			String digest = getContentHasher().getInputDigest( sourceFile,
+			                                                   getDependencies(sourceFile) );
+			if( digest.equals(record.getInputDigest()) )
+				return true;
+
+			configuration.getTask().log( "Content changed for "+sourceFile.getName(),
+			                             Project.MSG_VERBOSE );
+			return false;
+		}
+		catch( IOException ioex )
+		{
+			throw new BuildException( "Problem hashing inputs of "+sourceFile+": "+
+			                          ioex.getMessage(), ioex );
+		}
+	}
+
+	/**
+	 * Hash all the given source files and every dependency we have recorded for them. This is
+	 * done in parallel and the results are cached in the build state, so the subsequent
+	 * per-file checks don't need to touch the disk again.
+	 */
+	private void hashInputs( List<File> sourceFiles )
+	{
+		Set<File> files = new LinkedHashSet<File>();
+		for( File sourceFile : sourceFiles )
+		{
+			files.add( sourceFile );
+			for( String dependency : getDependencies(sourceFile) )
+				files.add( new File(dependency) );
+		}
+
+		try
+		{
+			long start = System.currentTimeMillis();
+			int threads = Runtime.getRuntime().availableProcessors();
+			getContentHasher().hashAll( files, threads );
+			configuration.getTask().log( "Checked content of "+files.size()+" files in "+
+			                             (System.currentTimeMillis()-start)+"ms",
+			                             Project.MSG_VERBOSE );
+		}
+		catch( IOException ioex )
+		{
+			throw new BuildException( "Problem hashing source files: "+ioex.getMessage(), ioex );
+		}
+	}
+
+	/**
+	 * Get the absolute paths of all the files the given source file depends on. If the compiler
+	 * told us what these were the last time the source was compiled we use that, otherwise we
+	 * work it out with the {@link IncludeScanner}. If the scan fails we log a warning and
+	 * return an empty list, so only the source file itself is checked.
+	 */
+	private List<String> getDependencies( File sourceFile )
+	{
+		FileRecord record = getBuildState().getRecord( sourceFile );
+		if( record != null && record.getDependencies().isEmpty() == false )
+			return record.getDependencies();
+
+		try
+		{
+			return getIncludeScanner().getDependencies( sourceFile );
+		}
+		catch( IOException ioex )
+		{
+			configuration.getTask().log( "Could not scan includes of "+sourceFile+": "+
+			                             ioex.getMessage(), Project.MSG_WARN );
+			return new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * Get the last modified time of the given file. Headers are typically shared by many
+	 * source files, so the value is cached for the rest of the run. Returns 0 if the file
+	 * doesn't exist.
+	 */
+	private long getTimestamp( String path )
+	{
+		Long timestamp = timestamps.get( path );
+		if( timestamp == null )
+		{
+			timestamp = new File(path).lastModified();
+			timestamps.put( path, timestamp );
+		}
+
+		return timestamp;
+	}
+
 	/**
 	 * Returns true if the file is a source file (ends with .c, .cpp, ...)
 	 */
@@ -297,10 +635,152 @@ public class BuildHelper
 		return new File( configuration.getOutputDirectory(), outputName );
 	}
 
+	/**
+	 * Check whether the output needs linking again. It doesn't if we're building incrementally,
+	 * the output exists, it was linked with the same command last time, and everything it is
+	 * linked from is either older than it or exactly the same as last time.
+	 * <p/>
+	 * That last part is the early cutoff: objects are often compiled again to exactly the same
+	 * bytes (a comment changed in a header, generated code that came out the same). When one
+	 * of the inputs is newer than the output, we compare the digest of the contents of all the
+	 * inputs with the one taken at the last link, and only link if they differ. The output is
+	 * left alone otherwise (not even touched), so nothing that uses it has to be rebuilt either.
+	 * The hash of each input is cached against its timestamp, so each is only read once after
+	 * it changes.
+	 * <p/>
+	 * When building by {@link IncrementalMode#CONTENT} the digests are always compared, even if
+	 * nothing is newer than the output: objects can come from the compile cache as hard links,
+	 * which keep the (older) timestamp of the cache entry.
+	 *
+	 * @param inputs The objects and libraries the output is linked from
+	 * @param linkFingerprint Fingerprint of the command that would link it
+	 */
+	public boolean isOutputUpToDate( List<File> inputs, String linkFingerprint )
+	{
+		File outputFile = getPlatformSpecificOutputFile();
+		if( configuration.isIncremental() == false || outputFile.exists() == false )
+			return false;
+
+		if( wasLinkedWith(linkFingerprint) == false )
+		{
+			configuration.getTask().log( "Link command changed for "+outputFile.getName(),
+			                             Project.MSG_VERBOSE );
+			return false;
+		}
+
+		// something added or taken away won't show up in the timestamps
+		FileRecord record = getBuildState().getRecord( outputFile );
+		String inputsFingerprint = getInputsFingerprint( linkFingerprint, inputs );
+		if( inputsFingerprint.equals(record.getCommandFingerprint()) == false )
+		{
+			configuration.getTask().log( "Files linked into "+outputFile.getName()+" changed",
+			                             Project.MSG_VERBOSE );
+			return false;
+		}
+
+		// anything missing is left for the link to complain about
+		File newer = null;
+		long lastModified = outputFile.lastModified();
+		for( File input : inputs )
+		{
+			if( input.exists() == false )
+				return false;
+			else if( input.lastModified() >= lastModified )
+				newer = input;
+		}
+
+		// objects restored from the cache by hard link keep the timestamp of the cache entry,
+		// which can be older than the output even though they aren't what it was linked from
+		boolean content = configuration.getIncrementalMode() == IncrementalMode.CONTENT;
+		if( newer == null && content == false )
+			return true;
+
+		// see if the newer inputs are the same as they were anyway
+		String inputDigest = getLinkDigest( inputs );
+		if( inputDigest != null && inputDigest.equals(record.getInputDigest()) )
+		{
+			if( newer != null )
+			{
+				configuration.getTask().log( "Inputs of "+outputFile.getName()+" were rebuilt "+
+				                             "but haven't changed, not linking",
+				                             Project.MSG_VERBOSE );
+				saveBuildState(); // the new input hashes
+			}
+
+			return true;
+		}
+
+		String changed = newer == null ? "An input" : newer.getName();
+		configuration.getTask().log( changed+" has changed since "+outputFile.getName()+
+		                             " was linked", Project.MSG_VERBOSE );
+		return false;
+	}
+
+	/**
+	 * @return True if the output was last linked with the command with the given fingerprint,
+	 *         whatever it was linked from
+	 */
+	public boolean wasLinkedWith( String linkFingerprint )
+	{
+		FileRecord record = getBuildState().getRecord( getPlatformSpecificOutputFile() );
+		return record != null &&
+		       record.getCommandFingerprint() != null &&
+		       record.getCommandFingerprint().startsWith( linkFingerprint+":" );
+	}
+
+	/**
+	 * The fingerprint we record for a link is the fingerprint of the command followed by one of
+	 * the paths of the inputs. The command doesn't always name all of them (a library that is
+	 * updated a few objects at a time), and we still need to know when one is added or removed.
+	 */
+	private String getInputsFingerprint( String linkFingerprint, List<File> inputs )
+	{
+		String[] paths = new String[inputs.size()];
+		for( int i = 0; i < paths.length; i++ )
+			paths[i] = inputs.get(i).getAbsolutePath();
+
+		return linkFingerprint+":"+ContentHasher.hashCommand( paths );
+	}
+
+	/**
+	 * Called once the output has been linked successfully, to record the command it was linked
+	 * with and the digest of what it was linked from. The build state is written out again, as
+	 * it has already been saved after the compile.
+	 *
+	 * @param inputs The objects and libraries the output was linked from
+	 * @param linkFingerprint Fingerprint of the command that linked it
+	 */
+	public void recordLinked( List<File> inputs, String linkFingerprint )
+	{
+		FileRecord record = getBuildState().getOrCreateRecord( getPlatformSpecificOutputFile() );
+		record.setCommandFingerprint( getInputsFingerprint(linkFingerprint,inputs) );
+		record.setInputDigest( configuration.isIncremental() ? getLinkDigest(inputs) : null );
+		saveBuildState();
+	}
+
+	/**
+	 * @return The digest of the contents of the given link inputs, or <code>null</code> if they
+	 *         can't all be read (which just means we'll link next time)
+	 */
+	private String getLinkDigest( List<File> inputs )
+	{
+		try
+		{
+			getContentHasher().hashAll( inputs, configuration.getThreadCount() );
+			return getContentHasher().getDigest( inputs );
+		}
+		catch( IOException ioex )
+		{
+			configuration.getTask().log( "Could not hash link inputs: "+ioex.getMessage(),
+			                             Project.MSG_VERBOSE );
+			return null;
+		}
+	}
+
 	/**
 	 * Get a list of all the ofiles that should be included in the link. This will be any ofiles
 	 * specified explicitly in the filesets, or the ofiles relating to any source files specified
-	 * in the filesets.
+	 * in the filesets (or for a unity build, the batches they were compiled in).
 	 * 
 	 * @param buildDirectory The directory to search for the object files in
 	 */
@@ -309,17 +789,18 @@ public class BuildHelper
 		ArrayList<File> ofiles = new ArrayList<File>();
 		for( FileSet set : configuration.getSourceFiles() )
 		{
+			// If this is an o-file, it has been explicitly mentioned, so include it
 			for( File file : listFiles(set) )
 			{
-				// If this is an o-file, it has been explicitly mentioned, so include it
-				// Otherwise, if this file is a source file, get the o-file equiv for it
-				// e.g. If MyClass.cpp is in the source files, MyClass.o should be in the link
 				if( file.getName().endsWith(O_EXTENSION) )
 					ofiles.add( file );
-				else if( isSourceFile(file) )
-					ofiles.add( getOFile(buildDirectory,file) );
 			}
 		}
+
+		// Get the o-file equiv for each thing we compiled
+		// e.g. If MyClass.cpp is in the source files, MyClass.o should be in the link
+		for( File file : getCompileUnits() )
+			ofiles.add( getOFile(buildDirectory,file) );
 		
 		return ofiles.toArray( new File[0] );
 	}	
@@ -350,6 +831,142 @@ public class BuildHelper
 		return new File( fileName );
 	}
 
+	/**
+	 * Get the file that the compiler should write dependency information for the given source
+	 * file into. This sits alongside the object file, but with a ".d" extension.
+	 */
+	public File getDependencyFile( File objectDirectory, File sourceFile )
+	{
+		String fileName = sourceFile.getName();
+		fileName = fileName.substring( 0, fileName.lastIndexOf('.') ) + ".d";
+		return new File( objectDirectory, fileName );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////// 4. Build State Methods //////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Get the {@link BuildState} that records information about previous builds for the
+	 * current object directory. It is loaded the first time this is called. If the stored
+	 * state can't be read we log a warning and start with an empty one, which just means
+	 * the incremental checks fall back to looking at the source files alone.
+	 */
+	public synchronized BuildState getBuildState()
+	{
+		if( this.buildState == null )
+		{
+			this.buildState = new BuildState( configuration.getObjectDirectory() );
+			try
+			{
+				this.buildState.load();
+			}
+			catch( IOException ioex )
+			{
+				configuration.getTask().log( "Could not read build state, ignoring it: "+
+				                             ioex.getMessage(), Project.MSG_WARN );
+				this.buildState = new BuildState( configuration.getObjectDirectory() );
+			}
+		}
+
+		return this.buildState;
+	}
+
+	/**
+	 * Get the {@link ContentHasher} that caches its results in our {@link BuildState}.
+	 */
+	public synchronized ContentHasher getContentHasher()
+	{
+		if( this.contentHasher == null )
+			this.contentHasher = new ContentHasher( getBuildState() );
+
+		return this.contentHasher;
+	}
+
+	/**
+	 * Get the {@link IncludeScanner} that resolves includes against the configured include
+	 * paths and caches its results in our {@link BuildState}.
+	 */
+	public synchronized IncludeScanner getIncludeScanner()
+	{
+		if( this.includeScanner == null )
+		{
+			List<File> directories = new ArrayList<File>();
+			for( IncludePath path : configuration.getIncludePaths() )
+			{
+				if( path.getPath() != null )
+				{
+					for( String temp : path.getPath().list() )
+						directories.add( new File(temp) );
+				}
+			}
+
+			this.includeScanner = new IncludeScanner( getBuildState(), directories );
+		}
+
+		return this.includeScanner;
+	}
+
+	/**
+	 * Called once a source file has been compiled successfully to record what the object was
+	 * built from. The dependencies are the complete list of files the compiler reported the
+	 * source as depending on (which may be empty if the compiler can't tell us). For content
+	 * based builds the digest of all those inputs is also taken and stored. If the list is empty,
+	 * later up-to-date checks use the {@link IncludeScanner} to find the dependencies.
+	 *
+	 * @param sourceFile The source file that was compiled
+	 * @param dependencies Everything the compiler said the object depends on
+	 * @param commandFingerprint Fingerprint of the compile command, or null if not known
+	 */
+	public void recordCompiled( File sourceFile,
+	                            List<File> dependencies,
+	                            String commandFingerprint )
+	{
+		BuildState state = getBuildState();
+		state.setDependencies( sourceFile, dependencies );
+		state.getOrCreateRecord(sourceFile).setCommandFingerprint( commandFingerprint );
+		if( configuration.getIncrementalMode() == IncrementalMode.CONTENT )
+			recordInputDigest( sourceFile );
+	}
+
+	/**
+	 * Take the digest of the given source file and its recorded dependencies and store it in
+	 * the build state as the baseline for the next content based up-to-date check.
+	 */
+	private void recordInputDigest( File sourceFile )
+	{
+		FileRecord record = getBuildState().getOrCreateRecord( sourceFile );
+		try
+		{
+			record.setInputDigest( getContentHasher().getInputDigest(sourceFile,
+			                                                         getDependencies(sourceFile)) );
+		}
+		catch( IOException ioex )
+		{
+			// without a digest the file will be compiled again next time, which is safe
+			record.setInputDigest( null );
+			configuration.getTask().log( "Could not hash inputs of "+sourceFile+": "+
+			                             ioex.getMessage(), Project.MSG_WARN );
+		}
+	}
+
+	/**
+	 * Write the current {@link BuildState} back to disk. Does nothing if it was never loaded.
+	 */
+	public synchronized void saveBuildState() throws BuildException
+	{
+		if( this.buildState == null )
+			return;
+
+		try
+		{
+			this.buildState.save();
+		}
+		catch( IOException ioex )
+		{
+			throw new BuildException( "Problem writing build state: "+ioex.getMessage(), ioex );
+		}
+	}
+
 	//----------------------------------------------------------
 	//                     STATIC METHODS
 	//----------------------------------------------------------
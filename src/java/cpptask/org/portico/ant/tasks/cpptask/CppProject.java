@@ -0,0 +1,216 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
+import org.portico.ant.tasks.cpptask.jobs.SharedJobServer;
+
+/**
+ * Example of Task usage:
+ *
+ *  <cppproject threadCount=""  // Jobs to run at once for the whole project (default: auto)
+ *                              // Takes the same values as the threadCount of <cpptask>
+ *              jobMemory=""    // Memory each compile needs for "auto", e.g. 1G (default: 512M)
+ *              keepGoing=""    // Keep building everything that doesn't depend on a failure
+ *              failOnError=""  // Fail the build on an error (defaults to true)
+ *  >
+ *      <target name="" depends="" outfile="" ...>  // see CppTarget, a <cpptask> with a name
+ *          ...                                     // and the targets it depends on
+ *      </target>
+ *
+ *      <adaptive .../>         // vary the jobs with load and memory, as for <cpptask>
+ *  </cppproject>
+ *
+ * Rather than building one target after another, the compiles of every target go onto one
+ * shared pool of threads straight away, and each target is linked as soon as all of its own
+ * files are compiled and the targets it depends on are linked. See {@link BuildGraph}.
+ * <p/>
+ * By default the first failure stops everything. With keepGoing, every target that doesn't
+ * depend on a failed one is still built, and the failures are reported at the end.
+ */
+public class CppProject extends Task
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String threadCount;
+	private long jobMemory;
+	private boolean keepGoing;
+	private boolean failOnError;
+	private Adaptive adaptive;
+	private List<CppTarget> targets;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public CppProject()
+	{
+		this.threadCount = "auto";
+		this.jobMemory = Adaptive.DEFAULT_JOB_MEMORY;
+		this.keepGoing = false;
+		this.failOnError = true;
+		this.adaptive = null;
+		this.targets = new ArrayList<CppTarget>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public void execute()
+	{
+		// check everything before we start anything
+		if( targets.isEmpty() )
+			throw new BuildException( "At least one <target> is required" );
+
+		BuildGraph graph = new BuildGraph( this );
+		for( CppTarget target : targets )
+		{
+			if( target.getName() == null )
+				throw new BuildException( "The attribute \"name\" of <target> is required" );
+
+			if( target.getBuildConfiguration().getMatrix() != null )
+				throw new BuildException( "A <target> can't have a <matrix>" );
+
+			target.logValues();
+			target.getBuildConfiguration().validateConfiguration();
+			graph.addBuild( target.getName(), target.getBuildConfiguration(), target.getDepends() );
+		}
+
+		graph.validate();
+
+		int threads = BuildConfiguration.resolveThreadCount( threadCount, this, jobMemory );
+		int maxJobs = threads;
+		if( adaptive != null )
+		{
+			adaptive.setDefaultJobMemory( jobMemory );
+			if( adaptive.getMaxThreads() > 0 )
+				maxJobs = adaptive.getMaxThreads();
+
+			if( adaptive.getMinThreads() < 1 || adaptive.getMinThreads() > maxJobs )
+			{
+				throw new BuildException( "The attribute \"minThreads\" of <adaptive> must be "+
+				                          "between 1 and the maximum ("+maxJobs+")" );
+			}
+		}
+
+		log( "Building "+graph.size()+" targets, "+maxJobs+" jobs at once" );
+		Scheduler scheduler = new Scheduler( this,
+		                                     maxJobs,
+		                                     keepGoing,
+		                                     adaptive,
+		                                     SharedJobServer.get(getProject()) );
+
+		try
+		{
+			graph.build( scheduler );
+			log( "Built "+graph.size()+" targets" );
+		}
+		catch( BuildException be )
+		{
+			if( failOnError )
+				throw be;
+			else
+				log( "Build Failed: " + be.getMessage(), Project.MSG_ERR );
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////
+	///////////////////////// Attribute Get and Set Methods /////////////////////////
+	/////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Set the number of jobs to run at once across every target. Takes the same values as the
+	 * threadCount of {@link CppTask}. Defaults to "auto".
+	 */
+	public void setThreadCount( String threadCount )
+	{
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Set how much memory to assume each compile job needs when working out an "auto" thread
+	 * count, e.g. 1G. Defaults to 512M.
+	 */
+	public void setJobMemory( String size )
+	{
+		try
+		{
+			this.jobMemory = CompileCache.parseSize( size );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid job memory \""+size+"\": "+nfe.getMessage() );
+		}
+	}
+
+	/**
+	 * By default the first failure stops the whole build. If set to <code>true</code>, every
+	 * target that doesn't depend on a failed one is still built, and all the failures are
+	 * reported at the end.
+	 */
+	public void setKeepGoing( boolean keepGoing )
+	{
+		this.keepGoing = keepGoing;
+	}
+
+	/**
+	 * If set to <code>true</code>, the task should fail the build if any target fails
+	 */
+	public void setFailOnError( boolean failOnError )
+	{
+		this.failOnError = failOnError;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////
+	/////////////////////////// Nested Element Set Methods ///////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Add a target to the project. See {@link CppTarget}.
+	 */
+	public CppTarget createTarget()
+	{
+		CppTarget target = new CppTarget();
+		target.bindToOwner( this );
+		target.init();
+		targets.add( target );
+		return target;
+	}
+
+	/**
+	 * Adapt the number of jobs running at once to the load and free memory of the machine.
+	 * Only one is allowed.
+	 */
+	public void addAdaptive( Adaptive adaptive )
+	{
+		if( this.adaptive != null )
+			throw new BuildException( "Only one <adaptive> is allowed" );
+
+		this.adaptive = adaptive;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
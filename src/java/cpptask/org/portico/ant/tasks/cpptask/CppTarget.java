@@ -0,0 +1,93 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A target in a {@link CppProject}. This takes all the same attributes and nested elements as
+ * a {@link CppTask}, plus a name and the names of the other targets in the project that have to
+ * be linked before it can be:
+ *
+ *  <target name=""             // (required) Name of the target, unique in the project
+ *          depends=""          // Comma separated names of the targets this one links against
+ *          outfile="" ...>     // anything a <cpptask> takes
+ *      ...
+ *  </target>
+ *
+ * The threadCount, keepGoing and <adaptive> of a target are ignored, the project decides those
+ * for everything it builds.
+ */
+public class CppTarget extends CppTask
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String name;
+	private List<String> depends;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public CppTarget()
+	{
+		this.name = null;
+		this.depends = new ArrayList<String>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * The name of the target. Log messages for the target are tagged with it.
+	 */
+	public void setName( String name )
+	{
+		this.name = name;
+		setTaskName( name );
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/**
+	 * The names of the targets this one depends on, separated by commas
+	 */
+	public void setDepends( String depends )
+	{
+		for( String dependency : depends.split(",") )
+		{
+			if( dependency.trim().isEmpty() == false )
+				this.depends.add( dependency.trim() );
+		}
+	}
+
+	public List<String> getDepends()
+	{
+		return this.depends;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
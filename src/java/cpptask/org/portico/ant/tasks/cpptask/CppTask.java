@@ -23,6 +23,8 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.types.FileSet;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
+import org.portico.ant.tasks.cpptask.jobs.SharedJobServer;
 import org.portico.ant.tasks.utils.Arch;
 
 
@@ -37,11 +39,24 @@ import org.portico.ant.tasks.utils.Arch;
  *           compiler=""        // Compiler to use: gcc, g++, vc8, vc9, vc10, ... )
  *           compilerArgs=""    // Additional compiler arguments
  *           linkerArgs=""      // Additional linker arguments
+ *           linker=""          // default, bfd, gold, lld, mold or auto (fastest found) (gcc only)
+ *           linkerBenchmark="" // Time the link with every linker we can find (default: false)
+ *           lto=""             // Link time optimization: none, full or thin (gcc only)
+ *           responseFileLimit="" // Longer commands use a response file (gcc, default: 32K)
+ *           thinArchive=""     // Static libraries refer to their objects (GNU ar, default: false)
  *           preCommand=""      // Command to run before the compile and link commands
  *           incremental=""     // Use incremental compilation and linking? (defaults to true)
+ *           incrementalMode="" // How to spot changes: timestamp or content (defaults to timestamp)
  *           failOnError=""     // Fail the build on an error (defaults to true)
+ *           keepGoing=""       // Compile everything, even after a failure (gcc only)
  *           threadCount=""     // Specify number of threads to use for parallel build (default: 1)
- *                              // If value is "auto", count will be number of CPUs in the system
+ *                              // If value is "auto", count will be number of CPUs we can use
+ *                              // (and that fit in memory), add "*1.5" or similar to scale it
+ *           jobMemory=""       // Memory each compile needs for "auto", e.g. 1G (default: 512M)
+ *           cacheDir=""        // Directory to cache compiled objects in (gcc only, default: none)
+ *           cacheSize=""       // Maximum size of the cache, e.g. 500M or 5G (default: 5G)
+ *           cacheRemote=""     // Shared cache, an http(s) URL or a shared directory (default: none)
+ *           cacheTimeout=""    // Milliseconds to wait on the shared cache (default: 5000)
  *  >
  *      <fileset...>                // fileset that contains source code
  *      <includepath path=""/>      // paths for include files (can have many)
@@ -50,8 +65,20 @@ import org.portico.ant.tasks.utils.Arch;
  *      <library libs=""/>          // names of libraries to link with
  *      <library path=""/>          // paths to library file to link with
  *      <library path="" libs=""/>  // combination of the above
+ *
+ *      <precompiledheader header=""/> // header to precompile and use in every compile (gcc only)
+ *      <unity batchSize="" excludes=""/> // compile sources in batches (unity build)
+ *      <batchcompile maxFiles="" maxSize=""/> // several small files per compiler run (gcc only)
+ *      <adaptive minThreads="" maxThreads="" maxLoad="" memoryFloor="" jobMemory=""/>
+ *                                  // vary the compile jobs with load and memory (gcc only)
+ *      <matrix compilers="" archs="" builds="" profile=""/>
+ *                                  // build for each compiler x arch x debug/release at once
  *  </cpptask>
  *
+ * Jobs (gcc only): when run from GNU make with a jobserver, or when the "cpptask.jobs" property
+ * is set (a number or "auto"), every cpptask in the build takes its compile and link jobs from
+ * one shared pool, so the whole build stays within one limit. threadCount is then the most jobs
+ * each task will run at once. See SharedJobServer.
  */
 public class CppTask extends Task
 {
@@ -86,13 +113,19 @@ public class CppTask extends Task
 		// we can check, but compiler-specific stuff will have to be delayed until later
 		this.configuration.validateConfiguration();
 		
-		// create the compiler class and pass ourselves to it for processing
-		Compiler theCompiler = CompilerType.newInstance( configuration.getCompilerType() );
-		
 		// pass the information to the compiler so it can do its thing
 		try
 		{
-			theCompiler.runCompiler( configuration );
+			if( configuration.getMatrix() == null )
+			{
+				// create the compiler class and pass ourselves to it for processing
+				Compiler theCompiler = CompilerType.newInstance( configuration.getCompilerType() );
+				theCompiler.runCompiler( configuration );
+			}
+			else
+			{
+				buildMatrix();
+			}
 		}
 		catch( BuildException be )
 		{
@@ -107,22 +140,50 @@ public class CppTask extends Task
 		}
 	}
 
+	/**
+	 * Build every cell of the matrix at once, sharing our thread count between them
+	 */
+	private void buildMatrix()
+	{
+		BuildGraph graph = new BuildGraph( this );
+		for( BuildConfiguration cell : configuration.getMatrix().getCells(configuration) )
+			graph.addBuild( cell.getVariant(), cell, new ArrayList<String>() );
+
+		graph.validate();
+		log( "Building "+graph.size()+" matrix cells, "+configuration.getMaxJobs()+
+		     " jobs at once" );
+
+		Scheduler scheduler = new Scheduler( this,
+		                                     configuration.getMaxJobs(),
+		                                     configuration.isKeepGoing(),
+		                                     configuration.getAdaptive(),
+		                                     SharedJobServer.get(getProject()) );
+		graph.build( scheduler );
+	}
+
 	/**
 	 * Logs the current state of the task at DEBUG level
 	 */
-	private void logValues()
+	void logValues()
 	{
 		log( "compiler      : " + configuration.getCompilerType(), Project.MSG_VERBOSE );
 		log( "preCommand    : " + configuration.getPreCommand(), Project.MSG_VERBOSE );
 		log( "compiler args : " + configuration.getCompilerArgs(), Project.MSG_VERBOSE );
 		log( "linker args   : " + configuration.getLinkerArgs(), Project.MSG_VERBOSE );
+		log( "linker        : " + configuration.getLinker(), Project.MSG_VERBOSE );
+		log( "lto           : " + configuration.getLto(), Project.MSG_VERBOSE );
 		log( "outfile       : " + configuration.getOutputName(), Project.MSG_VERBOSE );
 		log( "workdir       : " + configuration.getWorkingDirectory(), Project.MSG_DEBUG );
 		log( "outdir        : " + configuration.getOutputDirectory(), Project.MSG_DEBUG );
 		log( "type          : " + configuration.getOutputType(), Project.MSG_VERBOSE );
 		log( "arch          : " + configuration.getOutputArch(), Project.MSG_DEBUG );
 		log( "incremental   : " + configuration.isIncremental(), Project.MSG_VERBOSE );
+		log( "incr. mode    : " + configuration.getIncrementalMode(), Project.MSG_VERBOSE );
+		log( "thin archive  : " + configuration.isThinArchive(), Project.MSG_DEBUG );
 		log( "failOnError   : " + configuration.isFailOnError(), Project.MSG_VERBOSE );
+		log( "keepGoing     : " + configuration.isKeepGoing(), Project.MSG_VERBOSE );
+		log( "cache dir     : " + configuration.getCacheDirectory(), Project.MSG_VERBOSE );
+		log( "cache remote  : " + configuration.getCacheRemote(), Project.MSG_VERBOSE );
 
 		log( "source to be compiled:", Project.MSG_VERBOSE );
 		for( FileSet set : configuration.getSourceFiles() )
@@ -260,14 +321,97 @@ public class CppTask extends Task
 
 	/**
 	 * Set the number of threads to use when doing a build. This is just passed through to
-	 * the compiler which must support it. If set to "auto", the number will be the same as
-	 * the CPU count in the system.
+	 * the compiler which must support it. If set to "auto", the number will be the CPU count
+	 * we are allowed (including any container limits), or the number of jobs that fit in the
+	 * memory we are allowed if that is lower. Either can be multiplied by a factor, such as
+	 * "auto*1.5" or "4*2".
 	 */
 	public void setThreadCount( String args )
 	{
 		configuration.setThreadCount( args );
 	}
+
+	/**
+	 * Set how much memory to assume each compile job needs when working out an "auto" thread
+	 * count, e.g. 1G. Defaults to 512M.
+	 */
+	public void setJobMemory( String size )
+	{
+		try
+		{
+			configuration.setJobMemory( CompileCache.parseSize(size) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid job memory \""+size+"\": "+nfe.getMessage() );
+		}
+	}
 	
+	/**
+	 * Set the length (in characters, or with a K/M suffix) above which gcc command lines have
+	 * their arguments put in a response file rather than passed directly. Defaults to 32K,
+	 * which is under the Windows limit and well under the limits elsewhere. 0 means always
+	 * use a response file.
+	 */
+	public void setResponseFileLimit( String size )
+	{
+		try
+		{
+			long limit = size.trim().equals("0") ? 0 : CompileCache.parseSize( size );
+			configuration.setResponseFileLimit( limit );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid response file limit \""+size+"\": "+
+			                          nfe.getMessage() );
+		}
+	}
+
+	/**
+	 * Set the directory to keep a cache of compiled objects in. If the same source is compiled
+	 * with the same options again (in this or any other build using the cache) the object is
+	 * taken from the cache rather than compiled. Only supported for gcc at the moment.
+	 */
+	public void setCacheDir( File cacheDirectory )
+	{
+		configuration.setCacheDirectory( cacheDirectory );
+	}
+
+	/**
+	 * Set the size the compile cache should be kept under. This is a number of bytes with an
+	 * optional K, M or G suffix. The least recently used objects are removed to make room.
+	 */
+	public void setCacheSize( String size )
+	{
+		try
+		{
+			configuration.setCacheMaxSize( CompileCache.parseSize(size) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new BuildException( "Invalid cache size \""+size+"\": "+nfe.getMessage() );
+		}
+	}
+
+	/**
+	 * Set a shared compile cache to use behind the local one. This is either an http(s) URL
+	 * (objects are fetched with GET and stored with PUT) or a directory shared between machines.
+	 * If no cacheDir is given, the local cache goes in the working directory.
+	 */
+	public void setCacheRemote( String location )
+	{
+		configuration.setCacheRemote( location );
+	}
+
+	/**
+	 * Set the longest time in milliseconds to wait on the shared compile cache. If it takes
+	 * longer than this the file is just compiled.
+	 */
+	public void setCacheTimeout( int timeout )
+	{
+		configuration.setCacheTimeout( timeout );
+	}
+
 	/////////////////////////////
 	///// Runtime Arguments /////
 	/////////////////////////////
@@ -288,6 +432,62 @@ public class CppTask extends Task
 		configuration.setIncremental( incremental );
 	}
 
+	/**
+	 * Set the linker to link executables and shared libraries with. "auto" uses the fastest
+	 * one the compiler can find (mold, then lld, then gold, then the GNU linker). Only
+	 * supported for gcc, defaults to whatever the compiler uses by default.
+	 */
+	public void setLinker( LinkerAntEnum linker )
+	{
+		configuration.setLinker( Linker.valueOf(linker.getValue().toUpperCase()) );
+	}
+
+	/**
+	 * If set to <code>true</code>, after linking we link again with each of the linkers the
+	 * compiler can use and report how long each took, to help choose one for this target.
+	 * Only supported for gcc.
+	 */
+	public void setLinkerBenchmark( boolean linkerBenchmark )
+	{
+		configuration.setLinkerBenchmark( linkerBenchmark );
+	}
+
+	/**
+	 * Set the kind of link time optimization to do: "none", "full" or "thin". The right
+	 * options are added to both the compile and the link, and the link runs its optimization
+	 * in parallel, taking its jobs from the shared job pool if there is one (or threadCount of
+	 * them if not). Static libraries are built with gcc-ar so they are indexed properly. GCC
+	 * has no ThinLTO, so with gcc "thin" is its usual (partitioned) link time optimization.
+	 * Only supported for gcc, defaults to "none".
+	 */
+	public void setLto( LtoAntEnum lto )
+	{
+		configuration.setLto( LinkTimeOptimization.valueOf(lto.getValue().toUpperCase()) );
+	}
+
+	/**
+	 * If set to <code>true</code>, static libraries are built as thin archives: rather than
+	 * holding a copy of each object they just refer to the object files where they are, so
+	 * updating one is next to free. The objects have to stay where they are, so only use this
+	 * for libraries that are linked straight from the build tree, never ones that are shipped.
+	 * Needs GNU ar, it is ignored on Mac OS X.
+	 */
+	public void setThinArchive( boolean thinArchive )
+	{
+		configuration.setThinArchive( thinArchive );
+	}
+
+	/**
+	 * Sets how an incremental build decides whether a file needs to be compiled again. With
+	 * "timestamp" an object is rebuilt if its source or any header it includes is newer than it.
+	 * With "content" it is only rebuilt if the contents of those files has actually changed,
+	 * which is what you want when timestamps can't be trusted (checkouts, restored caches).
+	 */
+	public void setIncrementalMode( IncrementalModeAntEnum mode )
+	{
+		configuration.setIncrementalMode( IncrementalMode.valueOf(mode.getValue().toUpperCase()) );
+	}
+
 	/**
 	 * If set to <code>true</code>, the task should fail the build if there is a compile error
 	 */
@@ -296,6 +496,17 @@ public class CppTask extends Task
 		configuration.setFailOnError( failOnError );
 	}
 
+	/**
+	 * By default the first file that fails to compile stops the build: the files waiting to be
+	 * compiled are dropped and the compiles already running are killed. If set to
+	 * <code>true</code>, every file is compiled anyway and all the failures are reported at
+	 * the end.
+	 */
+	public void setKeepGoing( boolean keepGoing )
+	{
+		configuration.setKeepGoing( keepGoing );
+	}
+
 	//////////////////////////////////////////////////////////////////////////////////
 	/////////////////////////// Nested Element Set Methods ///////////////////////////
 	//////////////////////////////////////////////////////////////////////////////////
@@ -338,6 +549,66 @@ public class CppTask extends Task
 		configuration.addLibraries( library );
 	}
 
+	/**
+	 * Set a header that should be precompiled before the compile starts and then used by
+	 * every source file. Only one is allowed.
+	 */
+	public void addPrecompiledHeader( PrecompiledHeader header )
+	{
+		if( configuration.getPrecompiledHeader() != null )
+			throw new BuildException( "Only one <precompiledheader> is allowed" );
+
+		configuration.setPrecompiledHeader( header );
+	}
+
+	/**
+	 * Turn on a unity build, where source files are compiled in batches rather than one at a
+	 * time. Only one is allowed.
+	 */
+	public void addUnity( Unity unity )
+	{
+		if( configuration.getUnity() != null )
+			throw new BuildException( "Only one <unity> is allowed" );
+
+		configuration.setUnity( unity );
+	}
+
+	/**
+	 * Adapt the number of compile jobs running at once to the load and free memory of the
+	 * machine, rather than always running threadCount of them. Only one is allowed.
+	 */
+	public void addAdaptive( Adaptive adaptive )
+	{
+		if( configuration.getAdaptive() != null )
+			throw new BuildException( "Only one <adaptive> is allowed" );
+
+		configuration.setAdaptive( adaptive );
+	}
+
+	/**
+	 * Compile several small files with each run of the compiler, rather than starting it once
+	 * for every file. Only one is allowed. See {@link BatchCompile}.
+	 */
+	public void addBatchCompile( BatchCompile batchCompile )
+	{
+		if( configuration.getBatchCompile() != null )
+			throw new BuildException( "Only one <batchcompile> is allowed" );
+
+		configuration.setBatchCompile( batchCompile );
+	}
+
+	/**
+	 * Build for a number of compilers, architectures and build types at once, each in its own
+	 * directories. Only one is allowed. See {@link Matrix}.
+	 */
+	public void addMatrix( Matrix matrix )
+	{
+		if( configuration.getMatrix() != null )
+			throw new BuildException( "Only one <matrix> is allowed" );
+
+		configuration.setMatrix( matrix );
+	}
+
 	//----------------------------------------------------------
 	//                     STATIC METHODS
 	//----------------------------------------------------------
@@ -377,6 +648,51 @@ public class CppTask extends Task
 		}
 	}
 
+	/**
+	 * Ant enumeration to specify how incremental builds should detect changed files.
+	 */
+	public static class IncrementalModeAntEnum extends EnumeratedAttribute
+	{
+		public String[] getValues()
+		{
+			ArrayList<String> values = new ArrayList<String>();
+			for( IncrementalMode mode : IncrementalMode.values() )
+				values.add( mode.toString().toLowerCase() );
+			
+			return values.toArray( new String[0] );
+		}
+	}
+
+	/**
+	 * Ant enumeration to specify the kind of link time optimization.
+	 */
+	public static class LtoAntEnum extends EnumeratedAttribute
+	{
+		public String[] getValues()
+		{
+			ArrayList<String> values = new ArrayList<String>();
+			for( LinkTimeOptimization lto : LinkTimeOptimization.values() )
+				values.add( lto.toString().toLowerCase() );
+			
+			return values.toArray( new String[0] );
+		}
+	}
+
+	/**
+	 * Ant enumeration to specify the linker to use.
+	 */
+	public static class LinkerAntEnum extends EnumeratedAttribute
+	{
+		public String[] getValues()
+		{
+			ArrayList<String> values = new ArrayList<String>();
+			for( Linker linker : Linker.values() )
+				values.add( linker.toString().toLowerCase() );
+			
+			return values.toArray( new String[0] );
+		}
+	}
+
 	/**
 	 * Ant enumeration to specify the valid values for the output architecture type.
 	 */
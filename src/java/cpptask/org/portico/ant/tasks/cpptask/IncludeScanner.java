@@ -0,0 +1,470 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.portico.ant.tasks.cpptask.state.BuildState;
+import org.portico.ant.tasks.cpptask.state.FileRecord;
+
+/**
+ * A quick, compiler independent scanner that works out which headers a source file includes
+ * by looking for <code>#include</code> directives. It is used to get dependency information
+ * for sources the compiler hasn't told us about (compilers without dependency file support,
+ * or sources that have never been compiled with it).
+ * <p/>
+ * Includes are resolved the way the preprocessor would: <code>"quoted"</code> names are looked
+ * for in the directory of the including file first and then in each {@link IncludePath}, while
+ * <code>&lt;angled&gt;</code> names are only looked for in the include paths. Names that can't
+ * be found (system headers, or includes named by a macro) are ignored, as are conditionals, so
+ * the result may contain a few more headers than the preprocessor would actually use. That is
+ * safe: at worst a file is recompiled when it didn't strictly need to be.
+ * <p/>
+ * The directives found in each file are held in the {@link BuildState} along with the size and
+ * timestamp of the file, so on later runs only files that have changed are read again. Within
+ * a run, the resolved includes of each header (and everything they include in turn) are worked
+ * out once and shared by every source file that includes it.
+ */
+public class IncludeScanner
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// only look at this much of each file, directives are almost always near the top
+	// and this keeps us from reading huge generated sources in full
+	private static final int MAX_SCAN = 4 * 1024 * 1024;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private BuildState buildState;
+	private List<File> includeDirectories;
+
+	// every file we've looked at this run is given a number, and everything else is by number
+	private Map<String,Integer> ids;
+	private List<String> paths;
+	private List<int[]> includes;     // resolved direct includes of each file
+	private List<BitSet> closures;    // everything reachable from each file, including itself
+
+	// working state for finding include cycles (see getClosure())
+	private int[] index;
+	private int[] lowlink;
+	private boolean[] onStack;
+	private int counter;
+
+	// results of looking for a file on disk, by absolute path
+	private Map<String,Boolean> exists;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public IncludeScanner( BuildState buildState, List<File> includeDirectories )
+	{
+		this.buildState = buildState;
+		this.includeDirectories = includeDirectories;
+		this.ids = new HashMap<String,Integer>();
+		this.paths = new ArrayList<String>();
+		this.includes = new ArrayList<int[]>();
+		this.closures = new ArrayList<BitSet>();
+		this.index = new int[256];
+		this.lowlink = new int[256];
+		this.onStack = new boolean[256];
+		this.counter = 0;
+		this.exists = new HashMap<String,Boolean>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get every header that the given source file includes, directly or indirectly, that we
+	 * could find on disk. The source file itself is not part of the list.
+	 *
+	 * @param sourceFile The file to scan
+	 * @return The absolute paths of all the included files
+	 * @throws IOException If there is a problem reading any of the files
+	 */
+	public synchronized List<String> getDependencies( File sourceFile ) throws IOException
+	{
+		int id = getId( sourceFile.getAbsolutePath() );
+		BitSet closure = getClosure( id );
+		List<String> dependencies = new ArrayList<String>( closure.cardinality() );
+		for( int i = closure.nextSetBit(0); i >= 0; i = closure.nextSetBit(i+1) )
+		{
+			if( i != id )
+				dependencies.add( paths.get(i) );
+		}
+
+		return dependencies;
+	}
+
+	/**
+	 * Get the set of everything reachable from the given file through includes (including the
+	 * file itself). Headers are included by many files, so the result for each one is kept and
+	 * reused. Includes can be circular (guarded headers that include each other), so we use
+	 * Tarjan's algorithm to find each group of files that include each other and give them all
+	 * the same result. Results are built bottom up: by the time a group is complete, the result
+	 * for everything it includes is already known.
+	 */
+	private BitSet getClosure( int root ) throws IOException
+	{
+		if( closures.get(root) != null )
+			return closures.get(root);
+
+		// the call stack of the depth first search: file, and next include of it to look at
+		int[] callFile = new int[64];
+		int[] callInclude = new int[64];
+		int depth = 0;
+		// files in groups that are not yet complete
+		int[] stack = new int[64];
+		int stackSize = 0;
+
+		BitSet rootClosure = null;
+		int rootGroupSize = 0;
+		index[root] = lowlink[root] = counter++;
+		onStack[root] = true;
+		stack[stackSize++] = root;
+		callFile[depth] = root;
+		callInclude[depth++] = 0;
+		boolean finished = false;
+		try
+		{
+			while( depth > 0 )
+			{
+				int file = callFile[depth-1];
+				int[] fileIncludes = getIncludes( file );
+				if( callInclude[depth-1] < fileIncludes.length )
+				{
+					int include = fileIncludes[callInclude[depth-1]++];
+					if( closures.get(include) != null )
+					{
+						continue; // already done
+					}
+					else if( index[include] == -1 )
+					{
+						// not visited yet, go down into it
+						index[include] = lowlink[include] = counter++;
+						onStack[include] = true;
+						if( stackSize == stack.length )
+							stack = Arrays.copyOf( stack, stackSize*2 );
+						stack[stackSize++] = include;
+
+						if( depth == callFile.length )
+						{
+							callFile = Arrays.copyOf( callFile, depth*2 );
+							callInclude = Arrays.copyOf( callInclude, depth*2 );
+						}
+						callFile[depth] = include;
+						callInclude[depth++] = 0;
+					}
+					else if( onStack[include] )
+					{
+						// circular include
+						lowlink[file] = Math.min( lowlink[file], index[include] );
+					}
+
+					continue;
+				}
+
+				// finished with this file
+				depth--;
+				if( lowlink[file] == index[file] )
+				{
+					// it heads a group, pop the group off and work out the result for it
+					BitSet closure = new BitSet();
+					int first = stackSize;
+					do
+					{
+						closure.set( stack[--first] );
+					}
+					while( stack[first] != file );
+
+					for( int i = first; i < stackSize; i++ )
+					{
+						for( int include : includes.get(stack[i]) )
+						{
+							if( closures.get(include) != null )
+								closure.or( closures.get(include) );
+						}
+					}
+
+					for( int i = first; i < stackSize; i++ )
+					{
+						onStack[stack[i]] = false;
+						closures.set( stack[i], closure );
+					}
+
+					rootClosure = closure;
+					rootGroupSize = stackSize - first;
+					stackSize = first;
+				}
+
+				if( depth > 0 )
+				{
+					int parent = callFile[depth-1];
+					lowlink[parent] = Math.min( lowlink[parent], lowlink[file] );
+				}
+			}
+
+			finished = true;
+		}
+		finally
+		{
+			// if reading a file failed part way through, the files still on the stack are
+			// left looking half visited, forget them so the next search starts clean
+			if( finished == false )
+			{
+				for( int i = 0; i < stackSize; i++ )
+				{
+					index[stack[i]] = -1;
+					lowlink[stack[i]] = -1;
+					onStack[stack[i]] = false;
+				}
+			}
+		}
+
+		// source files are rarely included by anything else, so don't hold on to their
+		// results; if something does include one it will just be worked out again
+		if( rootGroupSize == 1 )
+		{
+			closures.set( root, null );
+			index[root] = -1;
+		}
+
+		return rootClosure;
+	}
+
+	/**
+	 * Get the number for the given file, giving it one if it doesn't have one yet
+	 */
+	private int getId( String path )
+	{
+		Integer id = ids.get( path );
+		if( id == null )
+		{
+			id = paths.size();
+			ids.put( path, id );
+			paths.add( path );
+			includes.add( null );
+			closures.add( null );
+			if( id == index.length )
+			{
+				index = Arrays.copyOf( index, id*2 );
+				lowlink = Arrays.copyOf( lowlink, id*2 );
+				onStack = Arrays.copyOf( onStack, id*2 );
+			}
+
+			index[id] = -1;
+		}
+
+		return id;
+	}
+
+	/**
+	 * Get the numbers of the files directly included by the given file.
+	 */
+	private int[] getIncludes( int id ) throws IOException
+	{
+		int[] resolved = includes.get( id );
+		if( resolved != null )
+			return resolved;
+
+		File file = new File( paths.get(id) );
+		File directory = file.getParentFile();
+		List<String> directives = getDirectives( file );
+		resolved = new int[directives.size()];
+		int count = 0;
+		for( String directive : directives )
+		{
+			String name = directive.substring( 1 );
+			File include = null;
+			if( directive.charAt(0) == '"' )
+				include = find( directory, name );
+
+			for( int i = 0; include == null && i < includeDirectories.size(); i++ )
+				include = find( includeDirectories.get(i), name );
+
+			if( include != null )
+				resolved[count++] = getId( include.getAbsolutePath() );
+		}
+
+		resolved = Arrays.copyOf( resolved, count );
+		includes.set( id, resolved );
+		return resolved;
+	}
+
+	/**
+	 * Get the raw include directives in the given file, from the build state if the file hasn't
+	 * changed since it was last scanned, or by reading it if it has.
+	 */
+	private List<String> getDirectives( File file ) throws IOException
+	{
+		long lastModified = file.lastModified();
+		if( lastModified == 0 && file.exists() == false )
+			return Collections.emptyList();
+
+		long size = file.length();
+		FileRecord record = buildState.getOrCreateRecord( file );
+		synchronized( record )
+		{
+			if( record.isIncludesValid(size,lastModified) )
+				return record.getIncludes();
+		}
+
+		List<String> directives = scan( file );
+		synchronized( record )
+		{
+			record.setIncludes( directives, size, lastModified );
+		}
+
+		return directives;
+	}
+
+	/**
+	 * Find the file with the given (relative) name in the given directory, or return null if
+	 * it isn't there.
+	 */
+	private File find( File directory, String name )
+	{
+		File file = new File( name );
+		if( file.isAbsolute() == false )
+			file = new File( directory, name );
+
+		String path = file.getAbsolutePath();
+		Boolean present = exists.get( path );
+		if( present == null )
+		{
+			present = file.isFile();
+			exists.put( path, present );
+		}
+
+		return present ? file : null;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Read the given file and pull out all the <code>#include</code> directives in it. Each
+	 * directive is returned as the included name with its opening delimiter on the front, so
+	 * <code>#include &lt;vector&gt;</code> gives <code>&lt;vector</code>. Directives that don't
+	 * use a literal name are skipped.
+	 */
+	public static List<String> scan( File file ) throws IOException
+	{
+		byte[] contents = readFile( file );
+		List<String> directives = new ArrayList<String>();
+		int length = contents.length;
+		int i = 0;
+		while( i < length )
+		{
+			// skip leading whitespace on the line
+			while( i < length && (contents[i] == ' ' || contents[i] == '\t') )
+				i++;
+
+			if( i < length && contents[i] == '#' )
+			{
+				i++;
+				while( i < length && (contents[i] == ' ' || contents[i] == '\t') )
+					i++;
+
+				if( matches(contents,i,"include") )
+				{
+					i += 7;
+					while( i < length && (contents[i] == ' ' || contents[i] == '\t') )
+						i++;
+
+					if( i < length && (contents[i] == '"' || contents[i] == '<') )
+					{
+						byte open = contents[i];
+						byte close = open == '"' ? (byte)'"' : (byte)'>';
+						int start = ++i;
+						while( i < length && contents[i] != close && contents[i] != '\n' )
+							i++;
+
+						if( i < length && contents[i] == close && i > start )
+						{
+							directives.add( (char)open +
+							                new String(contents,start,i-start,"UTF-8") );
+						}
+					}
+				}
+			}
+
+			// move to the start of the next line
+			while( i < length && contents[i] != '\n' )
+				i++;
+
+			i++;
+		}
+
+		return directives;
+	}
+
+	private static boolean matches( byte[] contents, int position, String word )
+	{
+		if( position + word.length() > contents.length )
+			return false;
+
+		for( int i = 0; i < word.length(); i++ )
+		{
+			if( contents[position+i] != word.charAt(i) )
+				return false;
+		}
+
+		return true;
+	}
+
+	private static byte[] readFile( File file ) throws IOException
+	{
+		FileInputStream stream = new FileInputStream( file );
+		try
+		{
+			byte[] contents = new byte[(int)Math.min(file.length(),MAX_SCAN)];
+			int read = 0;
+			while( read < contents.length )
+			{
+				int count = stream.read( contents, read, contents.length-read );
+				if( count == -1 )
+					break;
+
+				read += count;
+			}
+
+			if( read < contents.length )
+			{
+				byte[] trimmed = new byte[read];
+				System.arraycopy( contents, 0, trimmed, 0, read );
+				contents = trimmed;
+			}
+
+			return contents;
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ * 
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+/**
+ * How an incremental build decides whether an object file is up to date.
+ */
+public enum IncrementalMode
+{
+	/** Object is up to date if it is newer than its source and all the headers it includes */
+	TIMESTAMP,
+
+	/** Object is up to date if the contents of its source and headers haven't changed */
+	CONTENT;
+}
@@ -0,0 +1,155 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+/**
+ * A set of jobs on a {@link Scheduler} that something wants to know the end of, such as the
+ * compiles of one target in a {@link CppProject}, which has to link once they are all done.
+ * Jobs are submitted through the group, and once the group has been closed (no more jobs are
+ * coming) the action given to {@link #close(Runnable)} is run as soon as the last of them
+ * finishes, on the thread that ran it.
+ * <p/>
+ * Jobs the scheduler drops because the build was cancelled never finish, so neither does the
+ * group.
+ */
+public class JobGroup
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Scheduler scheduler;
+
+	// all guarded by this
+	private int pending;
+	private boolean failed;
+	private boolean closed;
+	private boolean done;
+	private Runnable whenDone;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public JobGroup( Scheduler scheduler )
+	{
+		this.scheduler = scheduler;
+		this.pending = 0;
+		this.failed = false;
+		this.closed = false;
+		this.done = false;
+		this.whenDone = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Queue up a job in this group on the scheduler. See {@link Scheduler#submit(String,Runnable)}.
+	 */
+	public void submit( String name, final Runnable job )
+	{
+		synchronized( this )
+		{
+			pending++;
+		}
+
+		scheduler.submit( name, new Runnable()
+		{
+			public void run()
+			{
+				boolean succeeded = false;
+				try
+				{
+					job.run();
+					succeeded = true;
+				}
+				finally
+				{
+					jobFinished( succeeded );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Say there are no more jobs coming. The given action (if there is one) is run once every
+	 * job submitted so far has finished, which may be straight away.
+	 */
+	public void close( Runnable whenDone )
+	{
+		synchronized( this )
+		{
+			this.closed = true;
+			this.whenDone = whenDone;
+		}
+
+		checkDone();
+	}
+
+	/**
+	 * @return true if any of the jobs in the group failed
+	 */
+	public synchronized boolean hasFailed()
+	{
+		return this.failed;
+	}
+
+	/**
+	 * @return true if the group has been closed and all of its jobs have finished
+	 */
+	public synchronized boolean isDone()
+	{
+		return this.done;
+	}
+
+	private void jobFinished( boolean succeeded )
+	{
+		synchronized( this )
+		{
+			pending--;
+			if( succeeded == false )
+				failed = true;
+		}
+
+		checkDone();
+	}
+
+	/**
+	 * Run the action if we've just finished. Only ever runs it once.
+	 */
+	private void checkDone()
+	{
+		Runnable action;
+		synchronized( this )
+		{
+			if( closed == false || pending > 0 || done )
+				return;
+
+			done = true;
+			action = whenDone;
+		}
+
+		if( action != null )
+			action.run();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,195 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * Runs the process for a job (such as compiling a file) as cheaply as we can. An Ant
+ * {@link org.apache.tools.ant.taskdefs.Execute} starts threads to pump the output of each
+ * process into the log a line at a time, each through the synchronized Ant logging. With
+ * thousands of small compiles that adds up. Here the output and errors of the process go
+ * straight to a file (one per thread, reused for each job it runs), so no threads are needed,
+ * and once the process has finished its output is logged in one go. That also keeps the
+ * output of each job together, rather than mixed in with the jobs running alongside it.
+ * <p/>
+ * If the thread waiting on the process is interrupted (which is how the {@link Scheduler}
+ * cancels running jobs), the whole process tree is killed. Killing just the process we
+ * started would usually only be the compiler driver (gcc, g++), leaving the compiler proper
+ * (cc1plus) that it started running to the end. The child processes can only be found on
+ * Java 9 or later.
+ */
+public class JobProcess
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final ThreadLocal<File> OUTPUT_FILES = new ThreadLocal<File>();
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String[] command;
+	private String[] environment; // "name=value" to add to ours
+	private File directory;       // null to run where we are
+	private String output;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public JobProcess( String[] command )
+	{
+		this.command = command;
+		this.environment = new String[0];
+		this.directory = null;
+		this.output = "";
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Set variables to add to (or replace in) the environment the process inherits from us,
+	 * each as "name=value"
+	 */
+	public void setEnvironment( String[] environment )
+	{
+		this.environment = environment;
+	}
+
+	/**
+	 * Set the directory to run the process in. By default it runs in our working directory.
+	 */
+	public void setWorkingDirectory( File directory )
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Run the process and wait for it to finish. Its output (and errors) are then available
+	 * from {@link #getOutput()}.
+	 *
+	 * @return The exit value of the process
+	 * @throws InterruptedIOException If we were interrupted while waiting, in which case the
+	 *                                process has been killed
+	 * @throws IOException If the process can't be started
+	 */
+	public int run() throws IOException
+	{
+		File outputFile = getOutputFile();
+		ProcessBuilder builder = new ProcessBuilder( command );
+		builder.redirectErrorStream( true );
+		builder.redirectOutput( Redirect.to(outputFile) );
+		if( directory != null )
+			builder.directory( directory );
+
+		Map<String,String> variables = builder.environment();
+		for( String variable : environment )
+		{
+			int equals = variable.indexOf( '=' );
+			if( equals > 0 )
+				variables.put( variable.substring(0,equals), variable.substring(equals+1) );
+		}
+
+		Process process = builder.start();
+		process.getOutputStream().close(); // nothing to say to it
+
+		try
+		{
+			int exitValue = process.waitFor();
+			this.output = new String( Files.readAllBytes(outputFile.toPath()) ).trim();
+			return exitValue;
+		}
+		catch( InterruptedException ie )
+		{
+			destroyTree( process );
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for "+command[0] );
+		}
+	}
+
+	/**
+	 * @return Everything the process wrote to its output and error streams, in the order it
+	 *         wrote it, or an empty string if it wrote nothing
+	 */
+	public String getOutput()
+	{
+		return this.output;
+	}
+
+	/**
+	 * Log the output of the process against the given task as a single message, so it stays
+	 * together in the log. Nothing is logged if there wasn't any.
+	 */
+	public void logOutput( Task task, int level )
+	{
+		if( output.isEmpty() == false )
+			task.log( output, level );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The file that the processes run by the current thread write their output to,
+	 *         creating it the first time
+	 */
+	private static File getOutputFile() throws IOException
+	{
+		File file = OUTPUT_FILES.get();
+		if( file == null )
+		{
+			file = File.createTempFile( "cpptask", ".out" );
+			file.deleteOnExit();
+			OUTPUT_FILES.set( file );
+		}
+
+		return file;
+	}
+
+	/**
+	 * Kill the given process and everything it started. The children are found through
+	 * <code>Process.toHandle().descendants()</code>, which we have to get at by reflection
+	 * as it isn't there in Java 8.
+	 */
+	public static void destroyTree( Process process )
+	{
+		try
+		{
+			Class<?> handleClass = Class.forName( "java.lang.ProcessHandle" );
+			Method destroy = handleClass.getMethod( "destroy" );
+			Object handle = Process.class.getMethod("toHandle").invoke( process );
+			Stream<?> descendants = (Stream<?>)handleClass.getMethod("descendants").invoke( handle );
+			for( Object child : descendants.toArray() )
+				destroy.invoke( child );
+		}
+		catch( Exception e )
+		{
+			// no ProcessHandle (before Java 9), or it isn't supported here
+		}
+
+		process.destroy();
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+/**
+ * The kind of link time optimization to do (gcc only)
+ */
+public enum LinkTimeOptimization
+{
+	//----------------------------------------------------------
+	//                    ENUMERATED VALUES
+	//----------------------------------------------------------
+	/** Objects are optimized on their own, as usual */
+	NONE,
+
+	/** The whole program is optimized at link time */
+	FULL,
+
+	/** Summary based (ThinLTO) optimization at link time, where the compiler supports it */
+	THIN;
+}
@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+/**
+ * The linker to link executables and shared libraries with (gcc only, through its
+ * <code>-fuse-ld</code> option). Static libraries are always built with ar.
+ */
+public enum Linker
+{
+	//----------------------------------------------------------
+	//                    ENUMERATED VALUES
+	//----------------------------------------------------------
+	/** Whatever the compiler links with if it isn't told */
+	DEFAULT( null ),
+
+	/** The GNU linker (ld.bfd), usually the default */
+	BFD( "bfd" ),
+
+	/** The GNU gold linker */
+	GOLD( "gold" ),
+
+	/** The LLVM linker */
+	LLD( "lld" ),
+
+	/** The mold linker */
+	MOLD( "mold" ),
+
+	/** The fastest of the linkers above that the compiler can use */
+	AUTO( null );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String fuseLd;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Linker( String fuseLd )
+	{
+		this.fuseLd = fuseLd;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The value to give gcc's <code>-fuse-ld</code> option for this linker, or
+	 *         <code>null</code> if there isn't one
+	 */
+	public String getFuseLd()
+	{
+		return this.fuseLd;
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.portico.ant.tasks.cpptask.support.cpplocals.Configuration;
+import org.portico.ant.tasks.cpptask.support.cpplocals.Debug;
+import org.portico.ant.tasks.cpptask.support.cpplocals.Release;
+import org.portico.ant.tasks.utils.Arch;
+
+/**
+ * Builds a <cpptask> once for each combination ("cell") of a set of compilers, architectures
+ * and build types (debug/release), all at once on one scheduler rather than one after another:
+ *
+ *  <matrix compilers=""    // Compilers to build with (defaults to the compiler of the task)
+ *          archs=""        // Architectures to build for (defaults to the arch of the task)
+ *          builds=""       // Build types: debug, release or both (defaults to both)
+ *          profile=""      // Property to narrow the cells down with, see below
+ *  >
+ *      <debug cargs="" largs="" symbols=""/>   // extra args and defines for debug cells
+ *      <release cargs="" largs="" symbols=""/> // extra args and defines for release cells
+ *  </matrix>
+ *
+ * Each cell is named compiler.arch.build (such as "gcc.amd64.debug"), the same as the
+ * properties set by generateCppCompilerVariables, and gets its own object directory
+ * (workdir/obj/[cell]) and output directory ([outdir]/[cell]) so the cells don't overwrite each
+ * other. The compiles of every cell share the thread count of the task. See {@link BuildGraph}.
+ * <p/>
+ * If <code>profile</code> names a property that is set, it is read as a build profile in the
+ * same way as generateCppCompilerVariables: a comma separated list of compilers, architectures
+ * and build types. Any that are in the profile narrow down the cells to build, so
+ * "-Dcompilers=gcc,debug" only builds the gcc debug cells.
+ */
+public class Matrix
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private List<String> compilers; // empty means the compiler of the task
+	private List<String> archs;     // empty means the arch of the task
+	private List<String> builds;
+	private String profile;         // name of the property holding the profile
+	private Debug debug;
+	private Release release;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public Matrix()
+	{
+		this.compilers = new ArrayList<String>();
+		this.archs = new ArrayList<String>();
+		this.builds = new ArrayList<String>( Arrays.asList("debug","release") );
+		this.profile = null;
+		this.debug = new Debug();
+		this.release = new Release();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Make a configuration for each cell of the matrix, copied from the given one.
+	 *
+	 * @param configuration The validated configuration of the task
+	 * @return The configuration of each cell, with the name of the cell as its variant
+	 * @throws BuildException If a compiler or arch isn't known, or no cells are left
+	 */
+	public List<BuildConfiguration> getCells( BuildConfiguration configuration )
+		throws BuildException
+	{
+		CppTask task = configuration.getTask();
+		List<String> compilers = this.compilers;
+		if( compilers.isEmpty() )
+			compilers = Arrays.asList( configuration.getCompilerType().toString().toLowerCase() );
+
+		List<String> archs = this.archs;
+		if( archs.isEmpty() )
+			archs = Arrays.asList( configuration.getOutputArch().toString() );
+
+		// narrow them down with the profile if there is one
+		List<String> builds = this.builds;
+		String value = profile == null ? null : task.getProject().getProperty( profile );
+		if( value != null && value.trim().isEmpty() == false )
+		{
+			List<String> selected = split( value );
+			compilers = narrow( compilers, selected );
+			archs = narrow( archs, selected );
+			builds = narrow( builds, selected );
+		}
+
+		List<BuildConfiguration> cells = new ArrayList<BuildConfiguration>();
+		for( String compiler : compilers )
+		{
+			for( String arch : archs )
+			{
+				for( String build : builds )
+				{
+					String name = compiler+"."+arch+"."+build;
+					CppTask cellTask = new CppTask();
+					cellTask.bindToOwner( task );
+					cellTask.setTaskName( name );
+
+					BuildConfiguration cell = configuration.copy( cellTask );
+					cell.setCompilerType( CompilerType.fromString(compiler) );
+					cell.setOutputArch( toArch(arch) );
+					cell.setVariant( name );
+					apply( cell, build.equals("debug") ? debug : release );
+					cells.add( cell );
+				}
+			}
+		}
+
+		if( cells.isEmpty() )
+			throw new BuildException( "No cells of the <matrix> are left to build" );
+
+		task.log( "Matrix cells: "+compilers+" x "+archs+" x "+builds, Project.MSG_VERBOSE );
+		return cells;
+	}
+
+	/**
+	 * Add the args and defines for the build type of a cell
+	 */
+	private void apply( BuildConfiguration cell, Configuration buildType )
+	{
+		cell.setCompilerArgs( (cell.getCompilerArgs()+" "+buildType.getCargs()).trim() );
+		cell.setLinkerArgs( (cell.getLinkerArgs()+" "+buildType.getLargs()).trim() );
+		for( String symbol : split(buildType.getSymbols()) )
+		{
+			Define define = new Define();
+			define.setName( symbol );
+			cell.addDefines( define );
+		}
+	}
+
+	/**
+	 * The compilers to build with, separated by commas (gcc, g++, vc10, ...). Defaults to the
+	 * compiler of the task.
+	 */
+	public void setCompilers( String compilers )
+	{
+		this.compilers = split( compilers );
+		for( String compiler : this.compilers )
+			CompilerType.fromString( compiler ); // throws if it isn't one
+	}
+
+	/**
+	 * The architectures to build for, separated by commas (x86, amd64). Defaults to the arch of
+	 * the task.
+	 */
+	public void setArchs( String archs )
+	{
+		this.archs = split( archs );
+		for( String arch : this.archs )
+			toArch( arch );
+	}
+
+	/**
+	 * The build types, separated by commas (debug, release). Defaults to both.
+	 */
+	public void setBuilds( String builds )
+	{
+		this.builds = split( builds );
+		for( String build : this.builds )
+		{
+			if( build.equals("debug") == false && build.equals("release") == false )
+				throw new BuildException( "Unknown build type: "+build );
+		}
+	}
+
+	/**
+	 * The name of a property holding a build profile to narrow the cells down with
+	 */
+	public void setProfile( String profile )
+	{
+		this.profile = profile;
+	}
+
+	/**
+	 * Extra args and defines for the debug cells
+	 */
+	public void addDebug( Debug debug )
+	{
+		this.debug = debug;
+	}
+
+	/**
+	 * Extra args and defines for the release cells
+	 */
+	public void addRelease( Release release )
+	{
+		this.release = release;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The values, lower case, if any of them were selected, otherwise all of them
+	 */
+	private static List<String> narrow( List<String> values, List<String> selected )
+	{
+		List<String> narrowed = new ArrayList<String>( values );
+		narrowed.retainAll( selected );
+		return narrowed.isEmpty() ? values : narrowed;
+	}
+
+	/**
+	 * Split a list separated by commas and/or spaces into lower case values
+	 */
+	private static List<String> split( String value )
+	{
+		List<String> values = new ArrayList<String>();
+		for( String part : value.trim().toLowerCase().split("[,\\s]+") )
+		{
+			if( part.isEmpty() == false )
+				values.add( part );
+		}
+
+		return values;
+	}
+
+	private static Arch toArch( String arch )
+	{
+		try
+		{
+			return Arch.valueOf( arch );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			throw new BuildException( "Unknown architecture: "+arch );
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+
+/**
+ * A header that should be precompiled once and then used for every file in the compile. It
+ * should include the heavy, rarely changing headers (standard library, boost, ...) that most of
+ * the source files include. The header is force-included into each compile, so source files
+ * don't need to include it themselves, though it does no harm if they do.
+ */
+public class PrecompiledHeader
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File header;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	public PrecompiledHeader()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	/**
+	 * The header file to precompile.
+	 */
+	public void setHeader( File header )
+	{
+		this.header = header;
+	}
+
+	public File getHeader()
+	{
+		return this.header;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,343 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out how much CPU and memory we're really allowed to use. Inside a container,
+ * {@link Runtime#availableProcessors()} can report every CPU on the host (Java 8 before update
+ * 191 doesn't look at cgroups at all), even when a CPU quota or cpuset means we only get a few
+ * of them. This reads the limits from the cgroup filesystem directly, for both cgroup v1 (a
+ * hierarchy per controller) and v2 (one unified hierarchy), and takes the tightest limit from
+ * our cgroup and each of its parents.
+ * <p/>
+ * Anywhere cgroups aren't available (anything but Linux), there are no limits beyond what the
+ * JVM reports.
+ */
+public class ResourceLimits
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	private static final File PROC_CGROUP = new File( "/proc/self/cgroup" );
+	private static final File PROC_MOUNTINFO = new File( "/proc/self/mountinfo" );
+	private static final File PROC_MEMINFO = new File( "/proc/meminfo" );
+
+	// cgroup v1 reports "no limit" as a huge number rather than anything sensible
+	private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Map<String,List<File>> v1Directories; // controller -> our cgroup dir and its parents
+	private List<File> v2Directories;             // our cgroup dir and its parents
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ResourceLimits()
+	{
+		this.v1Directories = new HashMap<String,List<File>>();
+		this.v2Directories = new ArrayList<File>();
+		try
+		{
+			findCgroups();
+		}
+		catch( Exception e )
+		{
+			// no cgroups here, we'll just report no limits
+		}
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The number of CPUs we can use: the fewest of what the JVM reports, the CPUs in
+	 *         our cpuset and our CPU quota (rounded up)
+	 */
+	public int getCpuCount()
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		// the cpuset
+		for( File directory : getDirectories("cpuset") )
+		{
+			String cpuset = read( new File(directory,"cpuset.cpus") );
+			if( cpuset == null )
+				cpuset = read( new File(directory,"cpuset.cpus.effective") );
+
+			int count = countCpus( cpuset );
+			if( count > 0 )
+				cpus = Math.min( cpus, count );
+		}
+
+		// the quota, v1 has a file each for the quota and period, v2 has "quota period"
+		for( File directory : getDirectories("cpu") )
+		{
+			long quota = -1;
+			long period = -1;
+			String max = read( new File(directory,"cpu.max") );
+			if( max != null )
+			{
+				String[] parts = max.split( "\\s+" );
+				quota = parts[0].equals("max") ? -1 : parseLong( parts[0] );
+				period = parts.length > 1 ? parseLong( parts[1] ) : 100000;
+			}
+			else
+			{
+				quota = parseLong( read(new File(directory,"cpu.cfs_quota_us")) );
+				period = parseLong( read(new File(directory,"cpu.cfs_period_us")) );
+			}
+
+			if( quota > 0 && period > 0 )
+				cpus = Math.min( cpus, (int)Math.max(1,Math.ceil((double)quota/period)) );
+		}
+
+		return Math.max( 1, cpus );
+	}
+
+	/**
+	 * @return The most memory we can use in bytes: the smaller of our cgroup memory limit and
+	 *         the memory in the machine, or -1 if we can't find either
+	 */
+	public long getMemoryLimit()
+	{
+		long limit = readMemoryTotal();
+		for( File directory : getDirectories("memory") )
+		{
+			// v2 says "max" if there is no limit, which doesn't parse, which is what we want
+			long value = parseLong( read(new File(directory,"memory.max")) );
+			if( value <= 0 )
+				value = parseLong( read(new File(directory,"memory.limit_in_bytes")) );
+
+			if( value > 0 && value < UNLIMITED && (limit < 0 || value < limit) )
+				limit = value;
+		}
+
+		return limit;
+	}
+
+	/**
+	 * The directories to look for the files of the given controller in, our own cgroup first.
+	 * A v1 hierarchy for the controller is used if there is one, otherwise the v2 hierarchy
+	 * (if the controller is turned on in it).
+	 */
+	private List<File> getDirectories( String controller )
+	{
+		List<File> directories = v1Directories.get( controller );
+		if( directories != null )
+			return directories;
+
+		if( v2Directories.isEmpty() )
+			return v2Directories;
+
+		// the root lists the controllers available in the hierarchy
+		File root = v2Directories.get( v2Directories.size()-1 );
+		String controllers = read( new File(root,"cgroup.controllers") );
+		if( controllers != null && Arrays.asList(controllers.split("\\s+")).contains(controller) )
+			return v2Directories;
+		else
+			return new ArrayList<File>();
+	}
+
+	/**
+	 * Find the cgroups we are in and where they are mounted. /proc/self/cgroup has a line for
+	 * each hierarchy we're in ("id:controllers:path", v2 is "0::path"), and the mounts of each
+	 * hierarchy are in /proc/self/mountinfo. The path is relative to the root of the hierarchy,
+	 * which may not be the root of the mount (in a container, the container's cgroup is usually
+	 * mounted as the root).
+	 */
+	private void findCgroups() throws Exception
+	{
+		Map<String,String> paths = new HashMap<String,String>(); // controllers -> path
+		for( String line : Files.readAllLines(PROC_CGROUP.toPath(),UTF8) )
+		{
+			String[] parts = line.split( ":", 3 );
+			if( parts.length == 3 )
+				paths.put( parts[1], parts[2] );
+		}
+
+		for( String line : Files.readAllLines(PROC_MOUNTINFO.toPath(),UTF8) )
+		{
+			// id parent major:minor root mountpoint options [optional...] - type source super
+			String[] parts = line.split( " " );
+			int separator = Arrays.asList(parts).indexOf( "-" );
+			if( separator == -1 || separator+3 >= parts.length )
+				continue;
+
+			String root = unescape( parts[3] );
+			File mountPoint = new File( unescape(parts[4]) );
+			String type = parts[separator+1];
+			if( type.equals("cgroup2") && paths.containsKey("") )
+			{
+				this.v2Directories = getHierarchy( mountPoint, root, paths.get("") );
+			}
+			else if( type.equals("cgroup") )
+			{
+				// the controllers are in the super options, along with rw and the like
+				List<String> options = Arrays.asList( parts[separator+3].split(",") );
+				for( Map.Entry<String,String> entry : paths.entrySet() )
+				{
+					List<String> controllers = Arrays.asList( entry.getKey().split(",") );
+					if( entry.getKey().isEmpty() || options.containsAll(controllers) == false )
+						continue;
+
+					List<File> hierarchy = getHierarchy( mountPoint, root, entry.getValue() );
+					for( String controller : controllers )
+						v1Directories.put( controller, hierarchy );
+				}
+			}
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The directory for our cgroup in the given mount, followed by each of its parents
+	 *         up to the mount point
+	 */
+	private static List<File> getHierarchy( File mountPoint, String root, String path )
+	{
+		// make the path relative to what is mounted, if it's somewhere else entirely then
+		// the mount point is the best we can do
+		String relative = path;
+		if( root.equals("/") == false )
+			relative = path.startsWith(root) ? path.substring(root.length()) : "/";
+
+		while( relative.startsWith("/") )
+			relative = relative.substring( 1 );
+
+		List<File> directories = new ArrayList<File>();
+		File directory = relative.isEmpty() ? mountPoint : new File( mountPoint, relative );
+		if( directory.isDirectory() == false )
+			directory = mountPoint;
+
+		while( directory != null && directory.getPath().startsWith(mountPoint.getPath()) )
+		{
+			directories.add( directory );
+			directory = directory.getParentFile();
+		}
+
+		return directories;
+	}
+
+	/**
+	 * Count the CPUs in a cpuset list such as "0-3,8,10-11"
+	 */
+	private static int countCpus( String cpuset )
+	{
+		if( cpuset == null || cpuset.isEmpty() )
+			return 0;
+
+		int count = 0;
+		for( String range : cpuset.split(",") )
+		{
+			int dash = range.indexOf( '-' );
+			if( dash == -1 )
+				count++;
+			else
+				count += parseLong(range.substring(dash+1)) - parseLong(range.substring(0,dash)) + 1;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The total memory in the machine from /proc/meminfo, or -1 if we can't find it
+	 */
+	private static long readMemoryTotal()
+	{
+		try
+		{
+			for( String line : Files.readAllLines(PROC_MEMINFO.toPath(),UTF8) )
+			{
+				// MemTotal:   12345678 kB
+				if( line.startsWith("MemTotal:") )
+					return parseLong( line.substring(9).trim().split("\\s+")[0] ) * 1024;
+			}
+		}
+		catch( Exception e )
+		{
+			// not on linux
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Mount info escapes spaces and the like as octal ("\040")
+	 */
+	private static String unescape( String value )
+	{
+		StringBuilder builder = new StringBuilder();
+		for( int i = 0; i < value.length(); i++ )
+		{
+			char current = value.charAt( i );
+			if( current == '\\' && i+3 < value.length() )
+			{
+				builder.append( (char)Integer.parseInt(value.substring(i+1,i+4),8) );
+				i += 3;
+			}
+			else
+			{
+				builder.append( current );
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * @return The contents of the file with whitespace trimmed, or null if it can't be read
+	 */
+	private static String read( File file )
+	{
+		try
+		{
+			return new String( Files.readAllBytes(file.toPath()), UTF8 ).trim();
+		}
+		catch( Exception e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return The value, or -1 if it is missing or isn't a number
+	 */
+	private static long parseLong( String value )
+	{
+		try
+		{
+			return Long.parseLong( value.trim() );
+		}
+		catch( Exception e )
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * A {@link Compiler} whose compiles can be run as jobs on a {@link Scheduler} shared with other
+ * builds, with the link as a separate step. A {@link CppProject} uses this to compile every
+ * target at once and link each one as soon as it can. Compilers that don't support this have
+ * their whole build run as one job instead.
+ */
+public interface ScheduledCompiler extends Compiler
+{
+	/**
+	 * Get ready to build the given configuration, and submit a job to the given group for each
+	 * file that needs compiling. Anything the compiles depend on (such as a precompiled header)
+	 * is done before this returns. The group is closed by the caller.
+	 */
+	public void startCompile( BuildConfiguration configuration, JobGroup jobs )
+		throws BuildException;
+
+	/**
+	 * Called once all the compile jobs have finished (or been cancelled) to save anything the
+	 * next build needs, such as the build state.
+	 */
+	public void finishCompile();
+
+	/**
+	 * Link what has been compiled. This is run as a job on the scheduler, which already has
+	 * its job token, so it shouldn't take one of its own.
+	 */
+	public void link() throws BuildException;
+}
@@ -0,0 +1,421 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.portico.ant.tasks.cpptask.jobs.JobServer;
+
+/**
+ * Runs the jobs of a parallel build (one per file to compile) on a pool of threads and keeps
+ * track of the ones that fail. Jobs are started in the order they are submitted.
+ * <p/>
+ * By default the first job to fail stops the build: anything still queued is dropped, and the
+ * threads running the other jobs are interrupted, which kills the compiler process they are
+ * waiting on (see {@link JobProcess}). The failure is then thrown from
+ * {@link #waitForCompletion()}. Anything the cancelled jobs throw on the way out is
+ * ignored, it is just fallout from the cancel.
+ * <p/>
+ * In "keep going" mode every job is run regardless, and all the failures are reported together
+ * at the end.
+ * <p/>
+ * If given {@link Adaptive} settings, the thread count is only the most jobs that will be run at
+ * once. Before each job starts it waits until the load and available memory of the machine say
+ * there is room for it. If given a {@link JobServer}, each job also has to take a token from it
+ * before it starts, so the jobs of every task sharing it stay within its limit. Either way, jobs
+ * still start in the order they were submitted.
+ * <p/>
+ * Jobs that something else is waiting on (such as a link in a {@link CppProject}) can be put
+ * at the front of the queue with {@link #submitFirst(String, Runnable)}.
+ */
+public class Scheduler
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// how long a compiler takes to get to its full memory use, jobs started more recently than
+	// this won't show up in the available memory yet
+	private static final long STARTUP_TIME = 2000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Task task;
+	private boolean keepGoing;
+	private ThreadPoolExecutor executor;
+	private LinkedBlockingDeque<Runnable> queue;
+	private List<Failure> failures; // guarded by this
+	private volatile boolean cancelled;
+
+	// adaptive concurrency and job tokens, all guarded by this
+	private Adaptive adaptive;      // null if we just run threadCount jobs at once
+	private JobServer jobServer;    // null if we aren't sharing jobs with anyone
+	private int running;
+	private Deque<Long> startTimes; // of recently started jobs, oldest first
+	private long nextTicket;        // jobs wait their turn so they start in order
+	private long nextFirstTicket;   // for jobs put at the front of the queue
+	private TreeSet<Long> turns;    // tickets of the jobs waiting to start, lowest goes next
+	private String waitingReason;   // why we're waiting, null if we aren't
+	private int cpuCount;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param task The task to log against
+	 * @param threadCount The number of jobs to run at once
+	 * @param keepGoing If false, the first failure cancels everything else. If true, all the
+	 *                  jobs are run and the failures reported at the end.
+	 */
+	public Scheduler( Task task, int threadCount, boolean keepGoing )
+	{
+		this( task, threadCount, keepGoing, null, null );
+	}
+
+	/**
+	 * @param task The task to log against
+	 * @param threadCount The most jobs to run at once
+	 * @param keepGoing If false, the first failure cancels everything else. If true, all the
+	 *                  jobs are run and the failures reported at the end.
+	 * @param adaptive Settings for adapting the number of jobs to the load on the machine, or
+	 *                 <code>null</code> to always run <code>threadCount</code> jobs
+	 * @param jobServer The pool of job tokens shared with other tasks and processes, or
+	 *                  <code>null</code> if there isn't one
+	 */
+	public Scheduler( Task task,
+	                  int threadCount,
+	                  boolean keepGoing,
+	                  Adaptive adaptive,
+	                  JobServer jobServer )
+	{
+		this.task = task;
+		this.keepGoing = keepGoing;
+		// the threads are all started up front so that jobs always go through the queue,
+		// which lets us put jobs at the front of it
+		int threads = Math.max( 1, threadCount );
+		this.queue = new LinkedBlockingDeque<Runnable>();
+		this.executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS, queue );
+		this.executor.prestartAllCoreThreads();
+		this.failures = new ArrayList<Failure>();
+		this.cancelled = false;
+
+		this.adaptive = adaptive;
+		this.jobServer = jobServer;
+		this.running = 0;
+		this.startTimes = new ArrayDeque<Long>();
+		this.nextTicket = 0;
+		this.nextFirstTicket = Long.MIN_VALUE;
+		this.turns = new TreeSet<Long>();
+		this.waitingReason = null;
+		this.cpuCount = adaptive == null ? 0 : new ResourceLimits().getCpuCount();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Queue up a job to run. The name is used when reporting a failure (usually the name of the
+	 * file the job compiles). Jobs submitted after the scheduler has been cancelled are ignored.
+	 */
+	public void submit( String name, Runnable job )
+	{
+		if( cancelled )
+			return;
+
+		long ticket;
+		synchronized( this )
+		{
+			ticket = nextTicket++;
+		}
+
+		executor.execute( new Job(name,job,ticket) );
+	}
+
+	/**
+	 * Queue up a job to run ahead of everything that is already queued (but after any other
+	 * jobs that were put at the front). Use this for jobs that other jobs are waiting on. Must
+	 * be called before {@link #waitForCompletion()}.
+	 */
+	public void submitFirst( String name, Runnable job )
+	{
+		if( cancelled )
+			return;
+
+		synchronized( this )
+		{
+			queue.offerFirst( new Job(name,job,nextFirstTicket++) );
+		}
+	}
+
+	/**
+	 * Wait until it is this job's turn and the machine has room for it (if we're adaptive). The
+	 * turn goes to the waiting job with the lowest ticket, which is the one that was submitted
+	 * first (or put at the front of the queue), and it stays this job's turn until it calls
+	 * {@link #jobStarted(long)}.
+	 *
+	 * @param ticket The place of the job in the submission order
+	 * @return true if the job can start, false if we've been cancelled while waiting
+	 */
+	private synchronized boolean waitForRoom( long ticket )
+	{
+		turns.add( ticket );
+		while( cancelled == false )
+		{
+			if( ticket == turns.first() )
+			{
+				if( adaptive == null )
+					return true;
+
+				// the jobs that started too recently to show up in the available memory
+				long now = System.currentTimeMillis();
+				while( startTimes.isEmpty() == false && startTimes.peekFirst() < now-STARTUP_TIME )
+					startTimes.removeFirst();
+
+				int starting = Math.min( running, startTimes.size() );
+				String reason = adaptive.checkStart( running, starting, cpuCount );
+				if( reason == null )
+				{
+					waitingReason = null;
+					return true;
+				}
+
+				// only log when we start waiting, the numbers change every time
+				if( waitingReason == null )
+				{
+					task.log( "Waiting to start more jobs ("+running+" running): "+reason,
+					          Project.MSG_VERBOSE );
+					waitingReason = reason;
+				}
+			}
+
+			try
+			{
+				wait( 250 );
+			}
+			catch( InterruptedException ie )
+			{ /* we get interrupted when cancelled, which the loop will see */ }
+		}
+
+		turns.remove( ticket );
+		return false;
+	}
+
+	/**
+	 * Take a token from the job server, logging if we have to wait for it.
+	 *
+	 * @return true if we got one, false if we were cancelled while waiting
+	 */
+	private boolean acquireToken()
+	{
+		try
+		{
+			jobServer.acquire();
+			return true;
+		}
+		catch( InterruptedException ie )
+		{
+			// only happens when we're cancelled
+			return false;
+		}
+	}
+
+	/**
+	 * The job whose turn it is has started (or given up), move on to the next one
+	 */
+	private synchronized void jobStarted( long ticket, boolean started )
+	{
+		if( started )
+		{
+			running++;
+			startTimes.addLast( System.currentTimeMillis() );
+		}
+
+		turns.remove( ticket );
+		notifyAll();
+	}
+
+	private synchronized void jobFinished()
+	{
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Record a failed job and cancel everything else if we're not keeping going. This is done
+	 * for any job that throws, but can also be used to report a failure from outside a job.
+	 */
+	public void failed( String name, Throwable throwable )
+	{
+		synchronized( this )
+		{
+			// once we're cancelled, failures are just from jobs we interrupted
+			if( cancelled )
+				return;
+
+			failures.add( new Failure(name,throwable) );
+			if( keepGoing )
+				return;
+
+			this.cancelled = true;
+		}
+
+		task.log( "Stopping the build, "+name+" failed", Project.MSG_VERBOSE );
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return true if a job has failed and the rest of the build has been cancelled
+	 */
+	public boolean isCancelled()
+	{
+		return this.cancelled;
+	}
+
+	/**
+	 * Wait for all the submitted jobs to finish (or be cancelled). If any of them failed, an
+	 * exception is thrown: the failure itself if we stopped at the first one, or one that lists
+	 * every failure if we kept going. No more jobs can be submitted once this has been called.
+	 *
+	 * @throws BuildException If any of the jobs failed
+	 */
+	public void waitForCompletion() throws BuildException
+	{
+		executor.shutdown();
+		while( executor.isTerminated() == false )
+		{
+			try
+			{
+				executor.awaitTermination( 500, TimeUnit.MILLISECONDS );
+			}
+			catch( InterruptedException ie )
+			{ /* just carry on */ }
+		}
+
+		List<Failure> failed;
+		synchronized( this )
+		{
+			failed = new ArrayList<Failure>( failures );
+		}
+
+		if( failed.isEmpty() )
+			return;
+
+		// stopped at the first one, just pass it on
+		if( keepGoing == false )
+			throw failed.get(0).toBuildException();
+
+		StringBuilder message = new StringBuilder();
+		message.append( failed.size() ).append( failed.size() == 1 ? " job" : " jobs" );
+		message.append( " failed:" );
+		for( Failure failure : failed )
+		{
+			task.log( failure.name+": "+failure.throwable.getMessage(), Project.MSG_ERR );
+			message.append( " " ).append( failure.name );
+		}
+
+		throw new BuildException( message.toString(), failed.get(0).throwable );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	//////////////////////////////// Private Inner Class: Job ////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private class Job implements Runnable
+	{
+		private String name;
+		private Runnable job;
+		private long ticket;
+
+		public Job( String name, Runnable job, long ticket )
+		{
+			this.name = name;
+			this.job = job;
+			this.ticket = ticket;
+		}
+
+		public void run()
+		{
+			if( cancelled )
+				return;
+
+			// wait our turn, for room on the machine and for a token
+			boolean throttled = adaptive != null || jobServer != null;
+			if( throttled && waitForRoom(ticket) == false )
+				return;
+
+			if( jobServer != null && acquireToken() == false )
+			{
+				jobStarted( ticket, false );
+				return;
+			}
+
+			if( throttled )
+				jobStarted( ticket, true );
+
+			try
+			{
+				job.run();
+			}
+			catch( Throwable throwable )
+			{
+				failed( name, throwable );
+			}
+			finally
+			{
+				if( jobServer != null )
+					jobServer.release();
+				if( throttled )
+					jobFinished();
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////// Private Inner Class: Failure /////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private static class Failure
+	{
+		private String name;
+		private Throwable throwable;
+
+		public Failure( String name, Throwable throwable )
+		{
+			this.name = name;
+			this.throwable = throwable;
+		}
+
+		public BuildException toBuildException()
+		{
+			if( throwable instanceof BuildException )
+				return (BuildException)throwable;
+			else
+				return new BuildException( name+": "+throwable.getMessage(), throwable );
+		}
+	}
+}
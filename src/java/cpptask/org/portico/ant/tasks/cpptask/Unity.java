@@ -0,0 +1,118 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Settings for a unity (or "jumbo") build, where source files are grouped into batches and
+ * each batch is compiled as a single file that includes all of its sources. This saves parsing
+ * the same headers over and over, at the cost of the sources in a batch having to get along
+ * with each other (no clashing static names, no macros leaking from one to the next). Sources
+ * that don't can be excluded and are compiled on their own as usual. See {@link UnityBatcher}.
+ */
+public class Unity
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int DEFAULT_BATCH_SIZE = 8;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int batchSize;
+	private List<String> excludes;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	public Unity()
+	{
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.excludes = new ArrayList<String>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	/**
+	 * The maximum number of source files in each batch
+	 */
+	public void setBatchSize( int batchSize )
+	{
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize()
+	{
+		return this.batchSize;
+	}
+
+	/**
+	 * Patterns for the source files that can't be part of a batch and must be compiled on their
+	 * own. Patterns are separated by "," or spaces and are matched against the full path of each
+	 * source file in the same way as fileset patterns (so "**&#47;legacy/*.cpp" works).
+	 */
+	public void setExcludes( String excludeString )
+	{
+		if( excludeString == null )
+			return;
+
+		StringTokenizer tokenizer = new StringTokenizer( excludeString, ", " );
+		while( tokenizer.hasMoreElements() )
+			this.excludes.add( tokenizer.nextToken() );
+	}
+
+	public List<String> getExcludes()
+	{
+		return this.excludes;
+	}
+
+	/**
+	 * @return true if the given source file matches one of the exclude patterns
+	 */
+	public boolean isExcluded( File sourceFile )
+	{
+		String path = sourceFile.getAbsolutePath();
+		for( String pattern : excludes )
+		{
+			// patterns without a directory part just match the file name
+			if( pattern.indexOf('/') == -1 && pattern.indexOf('\\') == -1 )
+			{
+				if( SelectorUtils.match(pattern,sourceFile.getName()) )
+					return true;
+			}
+			else if( SelectorUtils.matchPath(pattern,path) )
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,272 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Groups source files into the batches of a unity build (see {@link Unity}) and generates the
+ * file for each batch. A batch file just includes each of its sources in turn:
+ * <pre>
+ *   // Generated by cpptask...
+ *   #include "/path/to/src/One.cpp"
+ *   #include "/path/to/src/Two.cpp"
+ * </pre>
+ * Batches are kept as stable as possible between builds, so that changing a source file only
+ * means recompiling the batch it is in, and adding or removing a file doesn't shuffle every
+ * other file into a different batch (which would recompile everything). The previous batches
+ * are read back from the batch files in the unity directory: sources stay in the batch they
+ * were in, removed sources are dropped from their batch, and new sources fill any gaps before
+ * new batches are started. A batch file is only rewritten if its contents change.
+ * <p/>
+ * Sources are only batched with others of the same type (C files with C files, C++ with C++).
+ */
+public class UnityBatcher
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// the extensions we batch, anything else is compiled on its own
+	private static final List<String> EXTENSIONS = Arrays.asList( "c", "cpp", "cxx" );
+
+	// batch files are called "unity-[extension]-[number].[extension]"
+	private static final Pattern BATCH_NAME = Pattern.compile( "unity-(\\w+)-(\\d+)\\.(\\w+)" );
+	private static final String INCLUDE_PREFIX = "#include \"";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+	private Unity unity;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param directory The directory to generate the batch files in
+	 * @param unity The unity build settings
+	 */
+	public UnityBatcher( File directory, Unity unity )
+	{
+		this.directory = directory;
+		this.unity = unity;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Work out the batches for the given source files and make sure the batch files are up to
+	 * date. Returns the files that should actually be compiled: the batch files, plus any of the
+	 * sources that can't be batched.
+	 *
+	 * @param sourceFiles All the source files in the build
+	 * @return The files to compile in place of the given source files
+	 * @throws IOException If there is a problem reading or writing the batch files
+	 */
+	public List<File> batch( List<File> sourceFiles ) throws IOException
+	{
+		List<File> units = new ArrayList<File>();
+		Set<String> batchable = new LinkedHashSet<String>();
+		for( File sourceFile : sourceFiles )
+		{
+			if( unity.isExcluded(sourceFile) || EXTENSIONS.contains(getExtension(sourceFile)) == false )
+				units.add( sourceFile );
+			else
+				batchable.add( sourceFile.getAbsolutePath() );
+		}
+
+		// read the existing batches, keeping the sources that are still around. we're working
+		// through a copy of what is left to place so that we can spot sources that appear in
+		// two batches (someone has been editing batch files) and only keep the first
+		Map<String,List<String>> batches = readBatches();
+		Set<String> unplaced = new LinkedHashSet<String>( batchable );
+		List<String> overflow = new ArrayList<String>();
+		for( Map.Entry<String,List<String>> entry : batches.entrySet() )
+		{
+			List<String> kept = new ArrayList<String>();
+			for( String source : entry.getValue() )
+			{
+				if( unplaced.remove(source) == false )
+					continue;
+
+				// the batch size may have come down since last time
+				if( kept.size() < unity.getBatchSize() )
+					kept.add( source );
+				else
+					overflow.add( source );
+			}
+
+			entry.setValue( kept );
+		}
+
+		// place new files in the first batch of the right type with room, or a new batch
+		List<String> toPlace = new ArrayList<String>( overflow );
+		List<String> added = new ArrayList<String>( unplaced );
+		added.removeAll( overflow );
+		Collections.sort( added );
+		toPlace.addAll( added );
+		for( String source : toPlace )
+		{
+			String extension = getExtension( new File(source) );
+			List<String> batch = null;
+			for( Map.Entry<String,List<String>> entry : batches.entrySet() )
+			{
+				if( entry.getKey().startsWith("unity-"+extension+"-") &&
+				    entry.getValue().size() < unity.getBatchSize() )
+				{
+					batch = entry.getValue();
+					break;
+				}
+			}
+
+			if( batch == null )
+			{
+				batch = new ArrayList<String>();
+				batches.put( nextBatchName(batches.keySet(),extension), batch );
+			}
+
+			batch.add( source );
+		}
+
+		// write out the batches that have changed, and clear out the ones that are now empty
+		for( Map.Entry<String,List<String>> entry : batches.entrySet() )
+		{
+			File batchFile = new File( directory, entry.getKey() );
+			if( entry.getValue().isEmpty() )
+			{
+				batchFile.delete();
+			}
+			else
+			{
+				writeBatch( batchFile, entry.getValue() );
+				units.add( batchFile );
+			}
+		}
+
+		return units;
+	}
+
+	/**
+	 * Read the existing batch files, mapping the name of each to the sources in it. The map is
+	 * ordered by type and batch number.
+	 */
+	private Map<String,List<String>> readBatches() throws IOException
+	{
+		Map<String,List<String>> batches = new TreeMap<String,List<String>>( new BatchOrder() );
+		File[] files = directory.listFiles();
+		for( int i = 0; files != null && i < files.length; i++ )
+		{
+			if( BATCH_NAME.matcher(files[i].getName()).matches() == false )
+				continue;
+
+			List<String> sources = new ArrayList<String>();
+			for( String line : Files.readAllLines(files[i].toPath(),UTF8) )
+			{
+				if( line.startsWith(INCLUDE_PREFIX) && line.endsWith("\"") )
+				{
+					String path = line.substring( INCLUDE_PREFIX.length(), line.length()-1 );
+					sources.add( new File(path).getAbsolutePath() );
+				}
+			}
+
+			batches.put( files[i].getName(), sources );
+		}
+
+		return batches;
+	}
+
+	/**
+	 * Write the given batch file, but only if the contents have changed, so that its timestamp
+	 * only moves when the set of files in it does.
+	 */
+	private void writeBatch( File batchFile, List<String> sources ) throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append( "// Generated by cpptask for a unity build, do not edit.\n" );
+		for( String source : sources )
+			builder.append( INCLUDE_PREFIX ).append( source.replace('\\','/') ).append( "\"\n" );
+
+		byte[] contents = builder.toString().getBytes( UTF8 );
+		if( batchFile.exists() && Arrays.equals(Files.readAllBytes(batchFile.toPath()),contents) )
+			return;
+
+		directory.mkdirs();
+		Files.write( batchFile.toPath(), contents );
+	}
+
+	private String nextBatchName( Set<String> existing, String extension )
+	{
+		Set<String> names = new HashSet<String>( existing );
+		for( int i = 0; ; i++ )
+		{
+			String name = "unity-"+extension+"-"+i+"."+extension;
+			if( names.contains(name) == false )
+				return name;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static String getExtension( File file )
+	{
+		String name = file.getName();
+		int index = name.lastIndexOf( '.' );
+		return index == -1 ? "" : name.substring( index+1 );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////// Private Inner Class: BatchOrder ////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Orders batch names by type and then number, so "unity-cpp-2.cpp" comes before
+	 * "unity-cpp-10.cpp".
+	 */
+	private static class BatchOrder implements Comparator<String>
+	{
+		public int compare( String one, String two )
+		{
+			Matcher first = BATCH_NAME.matcher( one );
+			Matcher second = BATCH_NAME.matcher( two );
+			if( first.matches() == false || second.matches() == false )
+				return one.compareTo( two );
+
+			int result = first.group(1).compareTo( second.group(1) );
+			if( result != 0 )
+				return result;
+
+			return Long.compare( Long.parseLong(first.group(2)), Long.parseLong(second.group(2)) );
+		}
+	}
+}
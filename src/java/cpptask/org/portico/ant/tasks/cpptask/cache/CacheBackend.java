@@ -0,0 +1,57 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A store of compiled objects that is shared beyond the local machine, sitting behind the local
+ * {@link CompileCache}. Implementations don't need to worry about timing out or falling back to
+ * compiling, the {@link CompileCache} takes care of that, but they must be safe to call from
+ * several threads at once and must never leave a partly written object where another build
+ * could find it.
+ */
+public interface CacheBackend
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Fetch the object stored under the given key and write it to the given file. The file
+	 * should only be created if the whole object was fetched.
+	 *
+	 * @param key The key the object was stored under
+	 * @param target The file to write the object to
+	 * @return true if the object was found, false if there is no object for the key
+	 * @throws IOException If there is a problem talking to the store
+	 */
+	public boolean fetch( String key, File target ) throws IOException;
+
+	/**
+	 * Store the given object under the given key, replacing any existing object for the key.
+	 *
+	 * @param key The key to store the object under
+	 * @param object The compiled object file
+	 * @throws IOException If there is a problem talking to the store
+	 */
+	public void store( String key, File object ) throws IOException;
+
+	/**
+	 * @return A description of the store (its location) for log messages
+	 */
+	public String getDescription();
+}
@@ -0,0 +1,166 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.cache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.portico.ant.tasks.cpptask.state.ContentHasher;
+
+/**
+ * Builds the key a compiled object is stored under in a {@link CompileCache}. The key is a hash
+ * of everything that can affect the object: the identity of the compiler, the options it was
+ * run with and the preprocessed source. Hashing the preprocessed source rather than the source
+ * file means every header the source pulled in, and every define and include path used to
+ * find them, is captured without us having to know anything about them.
+ * <p/>
+ * Each part is added in order and separated, so the same values in a different order (or split
+ * differently between parts) give a different key.
+ */
+public class CacheKey
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private MessageDigest digest;
+	private String key; // once it has been generated
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public CacheKey()
+	{
+		try
+		{
+			this.digest = MessageDigest.getInstance( "SHA-1" );
+			this.key = null;
+		}
+		catch( NoSuchAlgorithmException nsae )
+		{
+			// every JVM is required to support SHA-1
+			throw new IllegalStateException( nsae );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Add a value (compiler identity, option, ...) to the key.
+	 */
+	public void add( String value )
+	{
+		try
+		{
+			digest.update( value.getBytes("UTF-8") );
+			digest.update( (byte)0 );
+		}
+		catch( UnsupportedEncodingException uee )
+		{
+			// UTF-8 is always supported
+			throw new IllegalStateException( uee );
+		}
+	}
+
+	/**
+	 * Add the contents of a preprocessed source file to the key. If <code>lineMarkers</code> is
+	 * false, the <code># 12 "file"</code> markers the preprocessor leaves in the output are
+	 * skipped. They only say where each line came from, which only matters to the object when
+	 * it contains debug information, and skipping them means the same source in two different
+	 * workspaces gives the same key.
+	 *
+	 * @param preprocessed The output of the preprocessor
+	 * @param lineMarkers Whether to include the line markers in the key
+	 * @throws IOException If there is a problem reading the file
+	 */
+	public void addPreprocessed( File preprocessed, boolean lineMarkers ) throws IOException
+	{
+		InputStream stream = new BufferedInputStream( new FileInputStream(preprocessed), 64*1024 );
+		try
+		{
+			byte[] line = new byte[1024];
+			int length = 0;
+			int current = 0;
+			while( current != -1 )
+			{
+				current = stream.read();
+				if( current != -1 )
+				{
+					if( length == line.length )
+						line = Arrays.copyOf( line, length*2 );
+
+					line[length++] = (byte)current;
+					if( current != '\n' )
+						continue;
+				}
+
+				// got a full line
+				if( lineMarkers || isLineMarker(line,length) == false )
+					digest.update( line, 0, length );
+
+				length = 0;
+			}
+
+			digest.update( (byte)0 );
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return true if the line is a marker in the form <code># 12 "file"</code> or
+	 *         <code>#line 12 "file"</code>
+	 */
+	private boolean isLineMarker( byte[] line, int length )
+	{
+		if( length < 3 || line[0] != '#' )
+			return false;
+
+		if( line[1] == ' ' && line[2] >= '0' && line[2] <= '9' )
+			return true;
+
+		return length > 5 && line[1] == 'l' && line[2] == 'i' && line[3] == 'n' &&
+		       line[4] == 'e' && line[5] == ' ';
+	}
+
+	/**
+	 * @return The key as a hex string. Nothing more can be added once this has been called.
+	 */
+	public String getKey()
+	{
+		if( this.key == null )
+			this.key = ContentHasher.toHex( digest.digest() );
+
+		return this.key;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
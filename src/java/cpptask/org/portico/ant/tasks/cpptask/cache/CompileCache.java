@@ -0,0 +1,551 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local, content addressed store of compiled object files. Objects are stored under a key
+ * that captures everything that went into them (see {@link CacheKey}), so if the same source
+ * is compiled with the same flags somewhere else (another branch, another workspace) the object
+ * can be copied out of the cache rather than compiled again.
+ * <p/>
+ * Entries live in a two level directory structure (<code>dir/ab/abcdef...o</code>) to keep
+ * directory sizes sane. Writes go to a temporary file that is renamed into place, so several
+ * builds can share a cache without ever seeing a partly written object. The cache is kept
+ * under its maximum size by evicting the least recently used entries: every hit sets the
+ * access time of the entry, and {@link #finish()} removes the entries that were used longest
+ * ago once the total size goes over. The access time is used rather than the modification
+ * time because a hard linked entry shares its timestamps with the objects linked to it.
+ * <p/>
+ * Hits are restored either by hard linking the entry into the object directory or by copying
+ * it. A hard link is cheaper, but the object then shares its timestamp with the cache entry,
+ * so it should only be used when timestamps aren't used to decide what is up to date.
+ * <p/>
+ * <b>Remote Backends</b>
+ * <p/>
+ * A {@link CacheBackend} can be given to share objects beyond this machine. Local misses are
+ * looked for in the backend (and kept locally if found), and newly compiled objects are
+ * uploaded to it in the background. The backend is never allowed to cost more than compiling
+ * would: every fetch is abandoned if it takes longer than the timeout (or than the source took
+ * to compile last time, if that is less), and after a few failures in a row the backend is
+ * turned off for the rest of the build. Either way, the caller just compiles.
+ */
+public class CompileCache
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Maximum size of the cache if one isn't given: 5GB */
+	public static final long DEFAULT_MAX_SIZE = 5L * 1024 * 1024 * 1024;
+
+	/** Timeout for remote backend operations if one isn't given, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 5000;
+
+	static final String EXTENSION = ".o";
+
+	// when we trim, go this far under the limit so we don't have to trim again straight away
+	private static final double TRIM_RATIO = 0.9;
+
+	// turn the backend off after this many failures in a row
+	private static final int MAX_FAILURES = 3;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+	private long maxSize;
+	private boolean link;
+
+	private CacheBackend backend;
+	private int timeout;
+	private ExecutorService backendExecutor;
+	private List<Future<?>> uploads;
+	private AtomicInteger failures;
+	private volatile boolean backendEnabled;
+
+	private AtomicInteger hits;
+	private AtomicInteger remoteHits;
+	private AtomicInteger misses;
+	private AtomicLong bytesStored;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param directory The directory the cache lives in, created if it doesn't exist
+	 * @param maxSize The size in bytes the cache should be kept under
+	 * @param link Restore hits with a hard link if possible, rather than a copy
+	 */
+	public CompileCache( File directory, long maxSize, boolean link )
+	{
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.link = link;
+		this.backend = null;
+		this.timeout = DEFAULT_TIMEOUT;
+		this.backendExecutor = null;
+		this.uploads = Collections.synchronizedList( new ArrayList<Future<?>>() );
+		this.failures = new AtomicInteger( 0 );
+		this.backendEnabled = false;
+		this.hits = new AtomicInteger( 0 );
+		this.remoteHits = new AtomicInteger( 0 );
+		this.misses = new AtomicInteger( 0 );
+		this.bytesStored = new AtomicLong( 0 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Share objects through the given backend as well as the local cache.
+	 *
+	 * @param backend The backend to use
+	 * @param timeout The longest, in milliseconds, to wait for the backend before giving up
+	 */
+	public void setBackend( CacheBackend backend, int timeout )
+	{
+		this.backend = backend;
+		this.timeout = timeout;
+		this.backendEnabled = true;
+		this.backendExecutor = Executors.newCachedThreadPool( new ThreadFactory()
+		{
+			public Thread newThread( Runnable runnable )
+			{
+				// a hung network file system shouldn't keep the build from exiting
+				Thread thread = new Thread( runnable, "cpptask-cache" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Look for an object with the given key and, if there is one, put it in place as the
+	 * given target file (replacing anything that is already there). If the object isn't in the
+	 * local cache the backend is checked, waiting at most the backend timeout or the given
+	 * time, whichever is less.
+	 *
+	 * @param key The key the object was stored under
+	 * @param target Where the object should be restored to
+	 * @param maxWait Longest to wait for the backend in milliseconds, or 0 to use the timeout
+	 * @return true if the object was found and restored, false if there wasn't one
+	 * @throws IOException If there was an entry but it couldn't be restored
+	 */
+	public boolean restore( String key, File target, long maxWait ) throws IOException
+	{
+		File entry = getEntry( directory, key );
+		if( entry.exists() == false )
+		{
+			if( fetchFromBackend(key,entry,maxWait) == false )
+			{
+				misses.incrementAndGet();
+				return false;
+			}
+
+			remoteHits.incrementAndGet();
+		}
+
+		// mark it as recently used so it isn't the next thing evicted
+		markUsed( entry );
+
+		target.delete();
+		if( link == false || createLink(target,entry) == false )
+			copy( entry, target );
+
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Store the given object in the cache under the given key. If there is already an entry
+	 * for the key, it is replaced. If there is a backend, the object is also uploaded to it
+	 * in the background.
+	 *
+	 * @param key The key to store the object under
+	 * @param object The compiled object file
+	 * @throws IOException If there is a problem writing the entry
+	 */
+	public void store( String key, File object ) throws IOException
+	{
+		final File entry = getEntry( directory, key );
+		copy( object, entry );
+		bytesStored.addAndGet( object.length() );
+
+		if( backendEnabled )
+		{
+			final String finalKey = key;
+			uploads.add( backendExecutor.submit(new Callable<Void>()
+			{
+				public Void call() throws IOException
+				{
+					backend.store( finalKey, entry );
+					return null;
+				}
+			}) );
+		}
+	}
+
+	/**
+	 * Called once all the compiling is done. Waits (for up to the backend timeout) for any
+	 * uploads to the backend to finish, then if anything has been stored by this build, checks
+	 * the total size of the local cache and evicts the least recently used entries until it is
+	 * back under the limit.
+	 *
+	 * @return A list of problems with the backend to be reported, empty if all went well
+	 * @throws IOException If there is a problem removing entries
+	 */
+	public List<String> finish() throws IOException
+	{
+		List<String> problems = new ArrayList<String>();
+		if( backendExecutor != null )
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			int failed = 0;
+			for( Future<?> upload : uploads )
+			{
+				try
+				{
+					long remaining = Math.max( 0, deadline-System.currentTimeMillis() );
+					upload.get( remaining, TimeUnit.MILLISECONDS );
+				}
+				catch( TimeoutException te )
+				{
+					upload.cancel( true );
+					failed++;
+				}
+				catch( ExecutionException ee )
+				{
+					failed++;
+				}
+				catch( InterruptedException ie )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			if( failed > 0 )
+				problems.add( failed+" objects could not be uploaded to "+backend.getDescription() );
+			if( backendEnabled == false )
+				problems.add( "Stopped using "+backend.getDescription()+" after repeated failures" );
+
+			backendExecutor.shutdownNow();
+		}
+
+		trim();
+		return problems;
+	}
+
+	/**
+	 * Try to fetch the given entry from the backend, giving up if it takes too long. Returns
+	 * true if we got it.
+	 */
+	private boolean fetchFromBackend( final String key, final File entry, long maxWait )
+	{
+		if( backendEnabled == false )
+			return false;
+
+		long wait = maxWait > 0 ? Math.min(maxWait,timeout) : timeout;
+		entry.getParentFile().mkdirs();
+		Future<Boolean> fetch = backendExecutor.submit( new Callable<Boolean>()
+		{
+			public Boolean call() throws IOException
+			{
+				return backend.fetch( key, entry );
+			}
+		});
+
+		try
+		{
+			boolean found = fetch.get( wait, TimeUnit.MILLISECONDS );
+			failures.set( 0 );
+			return found;
+		}
+		catch( TimeoutException te )
+		{
+			fetch.cancel( true );
+			backendFailed();
+			return false;
+		}
+		catch( ExecutionException ee )
+		{
+			backendFailed();
+			return false;
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void backendFailed()
+	{
+		if( failures.incrementAndGet() >= MAX_FAILURES )
+			backendEnabled = false;
+	}
+
+	private void trim() throws IOException
+	{
+		if( bytesStored.get() == 0 && remoteHits.get() == 0 )
+			return;
+
+		List<File> entries = new ArrayList<File>();
+		long total = 0;
+		File[] buckets = directory.listFiles();
+		for( int i = 0; buckets != null && i < buckets.length; i++ )
+		{
+			File[] files = buckets[i].listFiles();
+			for( int j = 0; files != null && j < files.length; j++ )
+			{
+				entries.add( files[j] );
+				total += files[j].length();
+			}
+		}
+
+		if( total <= maxSize )
+			return;
+
+		// least recently used first
+		final long now = System.currentTimeMillis();
+		final Map<File,Long> lastUsed = new HashMap<File,Long>();
+		for( File entry : entries )
+			lastUsed.put( entry, getLastUsed(entry) );
+
+		Collections.sort( entries, new Comparator<File>()
+		{
+			public int compare( File one, File two )
+			{
+				// a file deleted underneath us sorts first, which is fine
+				return Long.compare( lastUsed.get(one), lastUsed.get(two) );
+			}
+		});
+
+		long target = (long)(maxSize * TRIM_RATIO);
+		for( File entry : entries )
+		{
+			if( total <= target )
+				break;
+
+			// leave temporary files from another build alone unless they are stale
+			if( entry.getName().endsWith(EXTENSION) == false &&
+			    now - entry.lastModified() < 60*60*1000 )
+			{
+				continue;
+			}
+
+			long length = entry.length();
+			if( entry.delete() )
+				total -= length;
+		}
+	}
+
+	/**
+	 * @return The number of objects restored from the cache, including those from the backend
+	 */
+	public int getHits()
+	{
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of objects that were found in the backend but not the local cache
+	 */
+	public int getRemoteHits()
+	{
+		return this.remoteHits.get();
+	}
+
+	public int getMisses()
+	{
+		return this.misses.get();
+	}
+
+	/**
+	 * Record that the given entry was just used by setting its access time. The modification
+	 * time is left alone, as objects hard linked to the entry share it and a change would make
+	 * them look newer than they are.
+	 */
+	private void markUsed( File entry )
+	{
+		try
+		{
+			FileTime now = FileTime.fromMillis( System.currentTimeMillis() );
+			Files.getFileAttributeView( entry.toPath(), BasicFileAttributeView.class )
+			     .setTimes( null, now, null );
+		}
+		catch( IOException ioex )
+		{
+			// it just looks older than it is, at worst it is evicted sooner
+		}
+	}
+
+	/**
+	 * @return When the given entry was last used: the later of when it was stored and when it
+	 *         was last restored, or 0 if it has gone
+	 */
+	private long getLastUsed( File entry )
+	{
+		try
+		{
+			BasicFileAttributes attributes =
+				Files.readAttributes( entry.toPath(), BasicFileAttributes.class );
+			return Math.max( attributes.lastModifiedTime().toMillis(),
+			                 attributes.lastAccessTime().toMillis() );
+		}
+		catch( IOException ioex )
+		{
+			return 0;
+		}
+	}
+
+	private boolean createLink( File link, File existing )
+	{
+		try
+		{
+			Files.createLink( link.toPath(), existing.toPath() );
+			return true;
+		}
+		catch( IOException ioex )
+		{
+			// different file systems, or the file system doesn't do links
+			return false;
+		}
+		catch( UnsupportedOperationException uoe )
+		{
+			return false;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get the file the entry for the given key is kept in, inside the given cache directory
+	 */
+	static File getEntry( File directory, String key )
+	{
+		return new File( directory, key.substring(0,2)+File.separator+key+EXTENSION );
+	}
+
+	/**
+	 * Copy the given file to the given location through a temporary file in the same directory
+	 * that is then renamed into place. Anyone looking at the destination will either see
+	 * the old file (or no file) or the complete new one.
+	 */
+	static void copy( File source, File destination ) throws IOException
+	{
+		File parent = destination.getParentFile();
+		parent.mkdirs();
+		File temp = File.createTempFile( destination.getName(), ".tmp", parent );
+		try
+		{
+			Files.copy( source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			move( temp, destination );
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Rename the given file into place as the destination, atomically if the file system
+	 * supports it. The source should be in the same directory as the destination.
+	 */
+	static void move( File source, File destination ) throws IOException
+	{
+		try
+		{
+			Files.move( source.toPath(),
+			            destination.toPath(),
+			            StandardCopyOption.ATOMIC_MOVE,
+			            StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch( AtomicMoveNotSupportedException amnse )
+		{
+			Files.move( source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Create the backend for the given location. URLs starting with <code>http://</code> or
+	 * <code>https://</code> give an {@link HttpBackend}, anything else is taken to be a
+	 * directory and gives a {@link SharedDirectoryBackend}.
+	 *
+	 * @param location The URL or directory of the store
+	 * @param timeout The timeout for the backend in milliseconds
+	 */
+	public static CacheBackend createBackend( String location, int timeout )
+	{
+		String lower = location.toLowerCase();
+		if( lower.startsWith("http://") || lower.startsWith("https://") )
+			return new HttpBackend( location, timeout );
+		else
+			return new SharedDirectoryBackend( new File(location) );
+	}
+
+	/**
+	 * Parse a size given as a number of bytes with an optional K, M or G suffix (such as
+	 * "500M" or "5G").
+	 *
+	 * @throws NumberFormatException If the size isn't in a form we understand
+	 */
+	public static long parseSize( String size )
+	{
+		String value = size.trim().toUpperCase();
+		long multiplier = 1;
+		if( value.endsWith("K") )
+			multiplier = 1024;
+		else if( value.endsWith("M") )
+			multiplier = 1024 * 1024;
+		else if( value.endsWith("G") )
+			multiplier = 1024 * 1024 * 1024;
+
+		if( multiplier != 1 )
+			value = value.substring( 0, value.length()-1 ).trim();
+
+		long bytes = Long.parseLong( value ) * multiplier;
+		if( bytes <= 0 )
+			throw new NumberFormatException( "Size must be positive: "+size );
+
+		return bytes;
+	}
+}
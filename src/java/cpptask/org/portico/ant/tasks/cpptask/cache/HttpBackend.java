@@ -0,0 +1,171 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A {@link CacheBackend} that talks to a plain HTTP server. Objects are fetched with a
+ * <code>GET</code> of <code>[url]/[key].o</code> and stored with a <code>PUT</code> to the same
+ * location. A 404 response to a fetch is a miss, any other failure is an error. Anything that
+ * can serve and accept files this way will do (nginx with WebDAV enabled, most artifact stores,
+ * or a few lines of script for testing).
+ * <p/>
+ * The server is responsible for making sure a partly uploaded object is never served.
+ */
+public class HttpBackend implements CacheBackend
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String url;
+	private int timeout;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param url The base URL of the store
+	 * @param timeout Timeout in milliseconds for connecting and for each read
+	 */
+	public HttpBackend( String url, int timeout )
+	{
+		this.url = url.endsWith("/") ? url : url+"/";
+		this.timeout = timeout;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public boolean fetch( String key, File target ) throws IOException
+	{
+		HttpURLConnection connection = open( key );
+		try
+		{
+			int response = connection.getResponseCode();
+			if( response == HttpURLConnection.HTTP_NOT_FOUND )
+				return false;
+			else if( response != HttpURLConnection.HTTP_OK )
+				throw new IOException( "GET "+connection.getURL()+" returned "+response );
+
+			// download to the side and only move it into place once we have all of it
+			File temp = File.createTempFile( target.getName(), ".tmp", target.getParentFile() );
+			try
+			{
+				InputStream input = connection.getInputStream();
+				OutputStream output = new FileOutputStream( temp );
+				try
+				{
+					long length = copy( input, output );
+					long expected = connection.getContentLengthLong();
+					if( expected != -1 && length != expected )
+						throw new IOException( "Short read from "+connection.getURL() );
+				}
+				finally
+				{
+					output.close();
+					input.close();
+				}
+
+				CompileCache.move( temp, target );
+				return true;
+			}
+			finally
+			{
+				temp.delete();
+			}
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+
+	public void store( String key, File object ) throws IOException
+	{
+		HttpURLConnection connection = open( key );
+		try
+		{
+			connection.setRequestMethod( "PUT" );
+			connection.setDoOutput( true );
+			connection.setFixedLengthStreamingMode( object.length() );
+			connection.setRequestProperty( "Content-Type", "application/octet-stream" );
+
+			InputStream input = new FileInputStream( object );
+			try
+			{
+				OutputStream output = connection.getOutputStream();
+				copy( input, output );
+				output.close();
+			}
+			finally
+			{
+				input.close();
+			}
+
+			int response = connection.getResponseCode();
+			if( response < 200 || response > 299 )
+				throw new IOException( "PUT "+connection.getURL()+" returned "+response );
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+
+	public String getDescription()
+	{
+		return url;
+	}
+
+	private HttpURLConnection open( String key ) throws IOException
+	{
+		HttpURLConnection connection =
+			(HttpURLConnection)new URL( url+key+CompileCache.EXTENSION ).openConnection();
+		connection.setConnectTimeout( timeout );
+		connection.setReadTimeout( timeout );
+		connection.setUseCaches( false );
+		return connection;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long copy( InputStream input, OutputStream output ) throws IOException
+	{
+		byte[] buffer = new byte[64*1024];
+		long total = 0;
+		int read = 0;
+		while( (read = input.read(buffer)) != -1 )
+		{
+			output.write( buffer, 0, read );
+			total += read;
+		}
+
+		return total;
+	}
+}
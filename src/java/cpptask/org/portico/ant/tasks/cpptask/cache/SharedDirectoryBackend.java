@@ -0,0 +1,77 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link CacheBackend} that keeps objects in a directory shared between machines (an NFS or
+ * SMB mount, for example). It uses the same layout as the local {@link CompileCache}. Objects
+ * are written to a uniquely named temporary file in the destination directory and renamed into
+ * place, so any number of builds can write to it at once; readers either find no object or a
+ * complete one. If two builds store the same key at the same time, the last rename wins, which
+ * is fine as both objects are equivalent.
+ * <p/>
+ * Nothing is ever evicted from the shared directory by cpptask, that is left to whoever looks
+ * after the share.
+ */
+public class SharedDirectoryBackend implements CacheBackend
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public SharedDirectoryBackend( File directory )
+	{
+		this.directory = directory;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public boolean fetch( String key, File target ) throws IOException
+	{
+		File entry = CompileCache.getEntry( directory, key );
+		if( entry.exists() == false )
+			return false;
+
+		CompileCache.copy( entry, target );
+		return true;
+	}
+
+	public void store( String key, File object ) throws IOException
+	{
+		CompileCache.copy( object, CompileCache.getEntry(directory,key) );
+	}
+
+	public String getDescription()
+	{
+		return directory.getAbsolutePath();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
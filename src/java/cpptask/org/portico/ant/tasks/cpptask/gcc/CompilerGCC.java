@@ -15,25 +15,48 @@
  */
 package org.portico.ant.tasks.cpptask.gcc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
 import org.apache.tools.ant.types.Commandline;
+import org.portico.ant.tasks.cpptask.BatchCompile;
 import org.portico.ant.tasks.cpptask.BuildConfiguration;
 import org.portico.ant.tasks.cpptask.BuildHelper;
-import org.portico.ant.tasks.cpptask.Compiler;
 import org.portico.ant.tasks.cpptask.CppTask;
 import org.portico.ant.tasks.cpptask.Define;
 import org.portico.ant.tasks.cpptask.IncludePath;
 import org.portico.ant.tasks.cpptask.Library;
+import org.portico.ant.tasks.cpptask.Linker;
+import org.portico.ant.tasks.cpptask.IncrementalMode;
+import org.portico.ant.tasks.cpptask.JobGroup;
+import org.portico.ant.tasks.cpptask.JobProcess;
+import org.portico.ant.tasks.cpptask.LinkTimeOptimization;
 import org.portico.ant.tasks.cpptask.OutputType;
+import org.portico.ant.tasks.cpptask.ScheduledCompiler;
+import org.portico.ant.tasks.cpptask.Scheduler;
+import org.portico.ant.tasks.cpptask.cache.CacheBackend;
+import org.portico.ant.tasks.cpptask.cache.CacheKey;
+import org.portico.ant.tasks.cpptask.cache.CompileCache;
+import org.portico.ant.tasks.cpptask.jobs.JobServer;
+import org.portico.ant.tasks.cpptask.jobs.SharedJobServer;
+import org.portico.ant.tasks.cpptask.state.ContentHasher;
+import org.portico.ant.tasks.cpptask.state.DependencyFile;
+import org.portico.ant.tasks.cpptask.state.FileRecord;
 import org.portico.ant.tasks.utils.Arch;
 import org.portico.ant.tasks.utils.Platform;
 
@@ -41,11 +64,15 @@ import org.portico.ant.tasks.utils.Platform;
 /**
  * This class is responsible for the handling of the compilation process when using GCC.
  */
-public class CompilerGCC implements Compiler
+public class CompilerGCC implements ScheduledCompiler
 {
 	//----------------------------------------------------------
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
+	// compiler options that take a path, either as the next argument or joined on the end
+	private static final String[] PATH_OPTIONS = { "-I", "-iquote", "-isystem", "-idirafter",
+	                                               "-include", "-imacros", "-isysroot",
+	                                               "--sysroot=", "-specs=", "-B", "-L" };
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -54,6 +81,15 @@ public class CompilerGCC implements Compiler
 	private BuildConfiguration configuration;
 	private BuildHelper helper;
 	private String executable;
+	private String commandFingerprint; // of the compile command for this run
+	private boolean interfacesHashed;  // getInterfaceFile() had to read a library
+	private CompileCache cache;        // null if we're not caching
+	private String compilerIdentity;   // used in cache keys
+	private File pchStub;              // null if we're not using a precompiled header
+	private String pchLanguage;        // the language the header was precompiled for
+	private List<File> pchDependencies;
+	private JobServer jobServer;       // null if we're not sharing jobs with anyone
+	private boolean clang;             // is the compiler really clang? (only checked for lto)
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -70,17 +106,53 @@ public class CompilerGCC implements Compiler
 	
 	public void runCompiler( BuildConfiguration configuration ) throws BuildException
 	{
-		// extract the necessary information
+		// do that wild thing! and compile, probably link as well
+		compile( configuration );
+		link( true );
+	}
+
+	/**
+	 * Extract the information we need from the configuration and get the build space ready
+	 */
+	private void prepare( BuildConfiguration configuration )
+	{
 		this.configuration = configuration;
 		this.task = configuration.getTask();
 		this.helper = new BuildHelper( configuration );
-		
+		this.jobServer = SharedJobServer.get( task.getProject() );
+		this.clang = configuration.getLto() != LinkTimeOptimization.NONE && isClang();
+		if( configuration.getLto() == LinkTimeOptimization.THIN && clang == false )
+		{
+			task.log( "GCC has no ThinLTO, using its usual link time optimization",
+			          Project.MSG_VERBOSE );
+		}
+
 		// make sure we're ready to go
 		this.helper.prepareBuildSpace();
-		
-		// do that wild thing! and compile, probably link as well
-		compile();
-		link();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////// Scheduled Compiler Methods ///////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	public void startCompile( BuildConfiguration configuration, JobGroup jobs )
+		throws BuildException
+	{
+		prepare( configuration );
+		submitCompiles( jobs );
+	}
+
+	public void finishCompile()
+	{
+		// store the dependency information the compiler gave us for next time, even if
+		// the build failed there is no point compiling the files that worked again
+		helper.saveBuildState();
+		if( cache != null )
+			finishCache();
+	}
+
+	public void link() throws BuildException
+	{
+		link( false );
 	}
 
 	//////////////////////////////////////////////////////////////////////////////////////////
@@ -89,42 +161,394 @@ public class CompilerGCC implements Compiler
 	/**
 	 * Execute the actual compilation for each of the given files.
 	 */
-	private void compile()
+	private void compile( BuildConfiguration configuration )
+	{
+		prepare( configuration );
+
+		// Do the compile
+		// We have to support parallel builds by ourselves, so we throw a bunch of compile tasks
+		// into a queue and process with a scheduler and then wait for them all to finish
+		Scheduler scheduler = new Scheduler( task,
+		                                     configuration.getMaxJobs(),
+		                                     configuration.isKeepGoing(),
+		                                     configuration.getAdaptive(),
+		                                     jobServer );
+
+		try
+		{
+			JobGroup jobs = new JobGroup( scheduler );
+			submitCompiles( jobs );
+			jobs.close( null );
+
+			// throws the failure if any of the compiles failed
+			scheduler.waitForCompletion();
+		}
+		finally
+		{
+			finishCompile();
+		}
+
+		task.log( "Compile complete" );
+	}
+
+	/**
+	 * Work out what needs compiling and submit a job to compile each file to the given group.
+	 */
+	private void submitCompiles( JobGroup jobs )
 	{
 		// let everyone know what we're doing
 		task.log( "Starting Compile " );
 
 		// generate the command line
 		Commandline command = generateCompileCommand();
+		this.commandFingerprint = ContentHasher.hashCommand( command.getCommandline() );
+		this.cache = createCache();
 
 		// get all the files that we should compile
-		// this will run checks for things like incremental compiling
+		// this will run checks for things like incremental compiling, including whether
+		// the command line has changed since each object was last built
 		File objectDirectory = configuration.getObjectDirectory();
-		File[] filesToCompile = helper.getFilesThatNeedCompiling( objectDirectory );
+		File[] filesToCompile = helper.getFilesThatNeedCompiling( objectDirectory,
+		                                                          commandFingerprint );
 		task.log( "" + filesToCompile.length + " files to be compiled." );
 
-		// Do the compile
-		// We have to support parallel builds by ourselves, so we throw a bunch of compile tasks
-		// into a queue and process with an executor and then wait for them all to finish
-		ExecutorService executor = Executors.newFixedThreadPool( configuration.getThreadCount() );
-		
-		// create a runnable task for the compilation of each file and submit it
-		for( File sourceFile : filesToCompile )
-			executor.submit( new CompileTask(sourceFile,objectDirectory,command) );
+		// the precompiled header has to be ready before anything that uses it starts
+		this.pchStub = null;
+		if( filesToCompile.length > 0 && configuration.getPrecompiledHeader() != null )
+			preparePrecompiledHeader( command, objectDirectory );
 
-		// run the executor over the queue
-		executor.shutdown();
-		while( executor.isTerminated() == false )
+		// create a runnable task for the compilation of each file and submit it. the scheduler
+		// starts them in the order they are submitted, so start the longest ones first
+		File[] sorted = helper.sortByExpectedCompileTime( filesToCompile );
+		if( configuration.getBatchCompile() != null )
 		{
-			try
+			submitBatches( jobs, sorted, objectDirectory, command );
+			return;
+		}
+
+		for( File sourceFile : sorted )
+		{
+			jobs.submit( sourceFile.getName(),
+			             new CompileTask(sourceFile,objectDirectory,command) );
+		}
+	}
+
+	/**
+	 * Group the files to compile into batches as the {@link BatchCompile} settings allow and
+	 * submit a job for each batch. Files are taken in the order given (longest first), so the
+	 * batches are in roughly that order too. The files in a batch all have to be compiled with
+	 * exactly the same command, so files that use the precompiled header are never batched with
+	 * those that don't, and resource files are never batched at all. Two files with the same
+	 * name can't be in the same batch either, as their objects would be written over each other.
+	 */
+	private void submitBatches( JobGroup jobs,
+	                            File[] sourceFiles,
+	                            File objectDirectory,
+	                            Commandline command )
+	{
+		BatchCompile settings = configuration.getBatchCompile();
+		long maxSize = settings.getMaxSize();
+
+		// don't put so many files in each batch that there are fewer batches than threads
+		int jobCount = Math.max( 1, configuration.getMaxJobs() );
+		int maxFiles = (sourceFiles.length + jobCount - 1) / jobCount;
+		maxFiles = Math.max( 1, Math.min(settings.getMaxFiles(),maxFiles) );
+
+		// one open batch for files that use the precompiled header, one for those that don't
+		List<CompileTask> withHeader = new ArrayList<CompileTask>();
+		List<CompileTask> withoutHeader = new ArrayList<CompileTask>();
+		for( File sourceFile : sourceFiles )
+		{
+			CompileTask compileTask = new CompileTask( sourceFile, objectDirectory, command );
+			if( sourceFile.getName().endsWith(".rc") || sourceFile.length() > maxSize )
 			{
-				executor.awaitTermination( 500, TimeUnit.MILLISECONDS );
+				jobs.submit( sourceFile.getName(), compileTask );
+				continue;
 			}
-			catch( InterruptedException ie )
-			{ /* just carry on */ }
+
+			List<CompileTask> batch = usePrecompiledHeader(sourceFile) ? withHeader : withoutHeader;
+			if( batch.size() >= maxFiles ||
+			    getBatchSize(batch) + sourceFile.length() > maxSize ||
+			    hasObjectNamed(batch,sourceFile) )
+			{
+				submitBatch( jobs, batch, objectDirectory, command );
+				batch.clear();
+			}
+
+			batch.add( compileTask );
 		}
-		
-		task.log( "Compile complete" );
+
+		submitBatch( jobs, withHeader, objectDirectory, command );
+		submitBatch( jobs, withoutHeader, objectDirectory, command );
+	}
+
+	private void submitBatch( JobGroup jobs,
+	                          List<CompileTask> batch,
+	                          File objectDirectory,
+	                          Commandline command )
+	{
+		if( batch.isEmpty() )
+			return;
+
+		String name = batch.get(0).sourceFile.getName();
+		if( batch.size() == 1 )
+		{
+			jobs.submit( name, batch.get(0) );
+			return;
+		}
+
+		List<CompileTask> copy = new ArrayList<CompileTask>( batch );
+		jobs.submit( name+" (+"+(batch.size()-1)+" more)",
+		             new BatchCompileTask(copy,objectDirectory,command) );
+	}
+
+	/**
+	 * @return The total size of the sources in the given batch, in bytes
+	 */
+	private long getBatchSize( List<CompileTask> batch )
+	{
+		long size = 0;
+		for( CompileTask compileTask : batch )
+			size += compileTask.sourceFile.length();
+
+		return size;
+	}
+
+	/**
+	 * @return True if the given batch already has a file that compiles to the same object
+	 *         file name as the given source file
+	 */
+	private boolean hasObjectNamed( List<CompileTask> batch, File sourceFile )
+	{
+		File ofile = helper.getOFile( configuration.getObjectDirectory(), sourceFile );
+		for( CompileTask compileTask : batch )
+		{
+			if( compileTask.getObjectFile().equals(ofile) )
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Make sure the precompiled header is built and up to date. GCC will only use a precompiled
+	 * header if it was built with the same options as the file being compiled, so it is built
+	 * with the same command as everything else. Rather than precompiling the user's header in
+	 * place, we generate a small stub in the object directory that includes it and precompile
+	 * that, so the .gch file can live with the rest of the build output. GCC looks for the .gch
+	 * next to the stub when we force-include it, and if that can't be used it falls back to the
+	 * stub itself, which still includes the right header.
+	 * <p/>
+	 * The header is tracked in the build state like any other source file, so it is only
+	 * rebuilt when it (or something it includes) changes, or the command changes. If it can't
+	 * be built we warn and compile without it.
+	 */
+	private void preparePrecompiledHeader( Commandline command, File objectDirectory )
+	{
+		File header = configuration.getPrecompiledHeader().getHeader().getAbsoluteFile();
+		File pchDirectory = new File( objectDirectory, "pch" );
+		File stub = new File( pchDirectory, header.getName() );
+		File gch = new File( pchDirectory, header.getName()+".gch" );
+		File dependencyFile = new File( pchDirectory, header.getName()+".d" );
+
+		// work out which language to build it for, from everything in the build rather than
+		// just what needs compiling this time, or an edit to only the C files in a mixed build
+		// would flip the header over to C and back (rebuilding all the C++ each way)
+		String language = "c";
+		for( File file : helper.getCompileUnits() )
+		{
+			if( getLanguage(file).equals("c++") )
+				language = "c++";
+		}
+
+		Commandline pchCommand = (Commandline)command.clone();
+		pchCommand.createArgument().setValue( "-x" );
+		pchCommand.createArgument().setValue( language+"-header" );
+		pchCommand.createArgument().setFile( stub );
+		pchCommand.createArgument().setValue( "-o" );
+		pchCommand.createArgument().setFile( gch );
+		pchCommand.createArgument().setValue( "-MMD" );
+		pchCommand.createArgument().setValue( "-MF" );
+		pchCommand.createArgument().setFile( dependencyFile );
+		String fingerprint = ContentHasher.hashCommand( pchCommand.getCommandline() );
+
+		try
+		{
+			writeStub( stub, header );
+			if( helper.isUpToDate(stub,gch,fingerprint) == false )
+			{
+				task.log( "Precompiling " + header.getName() );
+				task.log( pchCommand.toString(), Project.MSG_DEBUG );
+				Execute runner = new Execute( new LogStreamHandler(configuration.getTask(),
+				                                                   Project.MSG_INFO,
+				                                                   Project.MSG_WARN) );
+				runner.setCommandline( getCommandline(pchCommand,
+				                                      new File(pchDirectory,"pch.rsp")) );
+				gch.delete();
+				if( runJob(runner,true) != 0 )
+				{
+					gch.delete();
+					helper.getBuildState().removeRecord( stub );
+					task.log( "Could not precompile "+header+", compiling without it",
+					          Project.MSG_WARN );
+					return;
+				}
+
+				File baseDirectory = new File( System.getProperty("user.dir") );
+				helper.recordCompiled( stub,
+				                       DependencyFile.parse(dependencyFile,baseDirectory),
+				                       fingerprint );
+			}
+		}
+		catch( IOException ioex )
+		{
+			gch.delete();
+			task.log( "Could not precompile "+header+", compiling without it: "+
+			          ioex.getMessage(), Project.MSG_WARN );
+			return;
+		}
+
+		// gcc doesn't list the headers that come from a precompiled header in the dependency
+		// files of the sources that use it, so we add them (and the .gch) ourselves
+		this.pchDependencies = new ArrayList<File>();
+		this.pchDependencies.add( gch );
+		FileRecord record = helper.getBuildState().getRecord( stub );
+		if( record != null )
+		{
+			for( String dependency : record.getDependencies() )
+				this.pchDependencies.add( new File(dependency) );
+		}
+
+		this.pchStub = stub;
+		this.pchLanguage = language;
+	}
+
+	/**
+	 * Write the stub that includes the real precompiled header. It is only written if it has
+	 * changed, so its timestamp doesn't make the .gch look out of date.
+	 */
+	private void writeStub( File stub, File header ) throws IOException
+	{
+		String contents = "#include \"" + header.getPath().replace('\\','/') + "\"\n";
+		byte[] bytes = contents.getBytes( "UTF-8" );
+		if( stub.exists() && Arrays.equals(Files.readAllBytes(stub.toPath()),bytes) )
+			return;
+
+		stub.getParentFile().mkdirs();
+		Files.write( stub.toPath(), bytes );
+	}
+
+	/**
+	 * @return "c" or "c++", depending on what gcc will compile the given source file as
+	 */
+	private String getLanguage( File sourceFile )
+	{
+		if( executable.endsWith("++") || sourceFile.getName().endsWith(".c") == false )
+			return "c++";
+		else
+			return "c";
+	}
+
+	/**
+	 * @return true if the precompiled header should be used for the given source file
+	 */
+	private boolean usePrecompiledHeader( File sourceFile )
+	{
+		return pchStub != null && getLanguage(sourceFile).equals(pchLanguage);
+	}
+
+	/**
+	 * Add the arguments to force include the precompiled header to the given command. We ask
+	 * for a warning if gcc can't use it for some reason, otherwise it quietly ignores it.
+	 */
+	private void appendPrecompiledHeader( Commandline commandline )
+	{
+		commandline.createArgument().setValue( "-include" );
+		commandline.createArgument().setFile( pchStub );
+		commandline.createArgument().setValue( "-Winvalid-pch" );
+	}
+
+	/**
+	 * Create the {@link CompileCache} if one has been configured. We need to know exactly which
+	 * compiler we're using to key the cache with, so if we can't find that out we log a warning
+	 * and carry on without a cache.
+	 */
+	private CompileCache createCache()
+	{
+		File directory = configuration.getCacheDirectory();
+		if( directory == null )
+			return null;
+
+		this.compilerIdentity = getCompilerIdentity();
+		if( this.compilerIdentity == null )
+			return null;
+
+		// a hard link shares its timestamp with the cache entry, so only link if we go by
+		// content to work out what is up to date (the link and the static library update
+		// go by content as well, see BuildHelper.isOutputUpToDate())
+		boolean link = configuration.getIncrementalMode() == IncrementalMode.CONTENT;
+		CompileCache compileCache =
+			new CompileCache( directory, configuration.getCacheMaxSize(), link );
+
+		if( configuration.getCacheRemote() != null )
+		{
+			int timeout = configuration.getCacheTimeout();
+			CacheBackend backend = CompileCache.createBackend( configuration.getCacheRemote(),
+			                                                   timeout );
+			compileCache.setBackend( backend, timeout );
+			task.log( "Using shared compile cache: "+backend.getDescription(),
+			          Project.MSG_VERBOSE );
+		}
+
+		return compileCache;
+	}
+
+	/**
+	 * Get the output of <code>gcc -v</code>, which has the version of the compiler, the target
+	 * it builds for and the options it was configured with. Returns null if it can't be run.
+	 */
+	private String getCompilerIdentity()
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Execute runner = new Execute( new PumpStreamHandler(output) );
+		runner.setCommandline( new String[]{ executable, "-v" } );
+		try
+		{
+			if( runner.execute() == 0 )
+				return output.toString();
+		}
+		catch( IOException ioex )
+		{
+			// fall through
+		}
+
+		task.log( "Could not get version of "+executable+", not using compile cache",
+		          Project.MSG_WARN );
+		return null;
+	}
+
+	/**
+	 * Let any uploads to the shared cache finish, trim the cache back under its size limit if
+	 * we've added to it and report how we went.
+	 */
+	private void finishCache()
+	{
+		try
+		{
+			for( String problem : cache.finish() )
+				task.log( problem, Project.MSG_WARN );
+		}
+		catch( IOException ioex )
+		{
+			task.log( "Problem trimming compile cache: "+ioex.getMessage(), Project.MSG_WARN );
+		}
+
+		String remote = "";
+		if( configuration.getCacheRemote() != null )
+			remote = " ("+cache.getRemoteHits()+" from shared cache)";
+
+		task.log( "Compile cache: "+cache.getHits()+" hits"+remote+", "+
+		          cache.getMisses()+" misses" );
 	}
 
 	/**
@@ -140,6 +564,9 @@ public class CompilerGCC implements Compiler
 		
 		////// platform architecture //////
 		appendCompilerArchitecture( commandline );
+
+		////// link time optimization //////
+		appendLinkTimeOptimization( commandline, false );
 		
 		////// includes //////
 		for( IncludePath path : configuration.getIncludePaths() )
@@ -166,6 +593,63 @@ public class CompilerGCC implements Compiler
 		return commandline;
 	}
 
+	/**
+	 * Add the link time optimization options (if we're doing it) to a compile or link command.
+	 * GCC runs the optimization in parallel when linking: with jobs from the shared job pool
+	 * if we pass the pool on to the processes we run (like make would), otherwise with as many
+	 * jobs as we're allowed threads. GCC has no ThinLTO, so for it "thin" is the same as
+	 * "full". Clang does both, and decides how many jobs to run itself.
+	 */
+	private void appendLinkTimeOptimization( Commandline commandline, boolean link )
+	{
+		LinkTimeOptimization lto = configuration.getLto();
+		if( lto == LinkTimeOptimization.NONE )
+			return;
+
+		String option = "-flto";
+		if( clang && lto == LinkTimeOptimization.THIN )
+			option = "-flto=thin";
+		else if( clang == false && link && isJobServerShared() )
+			option = "-flto=jobserver";
+		else if( clang == false && link )
+			option = "-flto=" + Math.max( 1, configuration.getMaxJobs() );
+
+		commandline.createArgument().setValue( option );
+	}
+
+	/**
+	 * @return True if the compiler is really clang (as gcc is on a Mac)
+	 */
+	private boolean isClang()
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Execute runner = new Execute( new PumpStreamHandler(output) );
+		runner.setCommandline( new String[]{ executable, "--version" } );
+		try
+		{
+			return runner.execute() == 0 && output.toString().contains( "clang" );
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return The archiver to build static libraries with. With link time optimization the
+	 *         objects hold the compiler's intermediate code rather than machine code, and
+	 *         only the compiler's own wrapper for ar knows how to index them (the ar on a
+	 *         Mac can do it itself).
+	 */
+	private String getArchiver()
+	{
+		boolean lto = configuration.getLto() != LinkTimeOptimization.NONE;
+		if( lto == false || Platform.getOsPlatform().isMac() )
+			return "ar";
+		else
+			return clang ? "llvm-ar" : "gcc-ar";
+	}
+
 	/**
 	 * Return the type of compiler we need to use. Calculated as follows:
 	 * <ul>
@@ -219,28 +703,88 @@ public class CompilerGCC implements Compiler
 	 * This method is the main manager of the linking process. It should only be run if an
 	 * "outfile" has been provided in the configuration. It will attempt to link all the
 	 * files in the objdir into a simple executable/library.
+	 *
+	 * @param takeToken Whether to take a token from the shared job server for the link. It is
+	 *                  already taken if we're running as a job on a scheduler.
 	 */
-	private void link()
+	private void link( boolean takeToken )
 	{
-		// generate the command line
-		Commandline commandline = generateLinkCommand();
+		// generate the command line, and see if the output is already up to date with it
+		File outputFile = helper.getPlatformSpecificOutputFile();
+		File objectDirectory = configuration.getObjectDirectory();
+		List<File> ofiles = Arrays.asList( helper.getFilesThatNeedLinking(objectDirectory) );
+		Linker linker = null;
+		Commandline linkCommand;
+		String fingerprint;
+		if( configuration.getOutputType() == OutputType.STATIC )
+		{
+			// the objects are left out, so adding or removing one can update the library
+			// rather than rebuild it (the inputs still cover which objects are in it)
+			Commandline options = generateStaticLinkCommand( getArchiveOperation(),
+			                                                 new ArrayList<File>() );
+			linkCommand = null;
+			fingerprint = ContentHasher.hashCommand( options.getCommandline() );
+		}
+		else
+		{
+			// ar is always used for static libraries, so only look for a linker otherwise
+			linker = LinkerProbe.resolve( task, executable, configuration.getLinker() );
+			linkCommand = generateLinkCommand( linker, outputFile );
+			fingerprint = ContentHasher.hashCommand( linkCommand.getCommandline() );
+		}
 
-		// create the execution object
-		Execute runner = new Execute( new LogStreamHandler( configuration.getTask(),
-		                                                    Project.MSG_INFO,
-		                                                    Project.MSG_WARN) );
-		
-		runner.setCommandline( commandline.getCommandline() );
+		List<File> inputs = new ArrayList<File>( ofiles );
+		inputs.addAll( getLibraryFiles() );
+		if( helper.isOutputUpToDate(inputs,fingerprint) )
+		{
+			task.log( "Output is up to date: " + outputFile );
+			task.log( "" ); // a little bit of space
+			return;
+		}
 
-		// run the command
+		// static libraries are built with ar, which might take more than one run, or none
+		// at all if the objects in the library are already up to date
+		List<Commandline> commands = new ArrayList<Commandline>();
+		if( configuration.getOutputType() == OutputType.STATIC )
+			commands.addAll( generateArchiveCommands(ofiles,fingerprint) );
+		else
+			commands.add( linkCommand );
+
+		// run the commands
+		File responseFile = new File( configuration.getObjectDirectory(), "linker-files.rsp" );
 		try
 		{
 			task.log( "Starting Link " );
-			task.log( commandline.toString(), Project.MSG_DEBUG );
+			for( Commandline commandline : commands )
+			{
+				task.log( commandline.toString(), Project.MSG_DEBUG );
+
+				// create the execution object
+				Execute runner = new Execute( new LogStreamHandler( configuration.getTask(),
+				                                                    Project.MSG_INFO,
+				                                                    Project.MSG_WARN) );
+				runner.setCommandline( getCommandline(commandline,responseFile) );
+				int exitValue = runJob( runner, takeToken );
+				if( exitValue != 0 )
+				{
+					// a half updated library can't be updated again next time, start over
+					if( configuration.getOutputType() == OutputType.STATIC )
+						outputFile.delete();
+
+					throw new BuildException( "Link Failed, (exit value: " + exitValue + ")" );
+				}
+			}
 
-			int exitValue = runner.execute();
-			if( exitValue != 0 )
-				throw new BuildException( "Link Failed, (exit value: " + exitValue + ")" );
+			boolean isStatic = configuration.getOutputType() == OutputType.STATIC;
+			if( isStatic && configuration.isIncremental() )
+				recordArchived( ofiles );
+
+			helper.recordLinked( inputs, fingerprint );
+			if( configuration.isLinkerBenchmark() &&
+			    configuration.getOutputType() != OutputType.STATIC )
+			{
+				benchmarkLinkers( linker, takeToken );
+			}
 		}
 		catch( IOException e )
 		{
@@ -254,29 +798,76 @@ public class CompilerGCC implements Compiler
 		task.log( "" ); // a little bit of space
 	}
 
+	/**
+	 * Link again with each linker the compiler can use (to a scratch file in the object
+	 * directory) and report how long each of them took. The linker we used is timed again as
+	 * well, so they are all compared on the same footing.
+	 *
+	 * @param used The linker we linked with
+	 */
+	private void benchmarkLinkers( Linker used, boolean takeToken ) throws IOException
+	{
+		File objectDirectory = configuration.getObjectDirectory();
+		File outputFile = helper.getPlatformSpecificOutputFile();
+		File scratch = new File( objectDirectory, "benchmark-"+outputFile.getName() );
+		File responseFile = new File( objectDirectory, "linker-benchmark.rsp" );
+
+		task.log( "Timing the link with each linker" );
+		StringBuilder report = new StringBuilder( "Link times for "+outputFile.getName()+":" );
+		List<Linker> linkers = new ArrayList<Linker>( LinkerProbe.getAvailable(task,executable) );
+		if( linkers.contains(used) == false )
+			linkers.add( 0, used ); // the compiler's default isn't one of the ones we look for
+
+		for( Linker linker : linkers )
+		{
+			Commandline commandline = generateLinkCommand( linker, scratch );
+			Execute runner = new Execute( new LogStreamHandler( configuration.getTask(),
+			                                                    Project.MSG_VERBOSE,
+			                                                    Project.MSG_VERBOSE) );
+			runner.setCommandline( getCommandline(commandline,responseFile) );
+
+			long startTime = System.currentTimeMillis();
+			int exitValue = runJob( runner, takeToken );
+			long linkTime = System.currentTimeMillis() - startTime;
+			scratch.delete();
+
+			String name = linker.toString().toLowerCase();
+			report.append( String.format("%n  %-7s ",name) );
+			if( exitValue == 0 )
+				report.append( String.format("%7dms",linkTime) );
+			else
+				report.append( "failed (exit value: "+exitValue+")" );
+
+			if( linker == used )
+				report.append( " (used)" );
+		}
+
+		task.log( report.toString() );
+	}
+
 	/**
 	 * Generates the linker execution command line including library locations, .o files etc...
+	 *
+	 * @param linker The linker to link with, already resolved (never {@link Linker#AUTO})
+	 * @param outputFile The file to link to
 	 */
-	private Commandline generateLinkCommand()
+	private Commandline generateLinkCommand( Linker linker, File outputFile )
 	{
-		// Creating a static library in gcc/clang uses ar instead of ld via gcc.
-		// The command line for ar is different, it has been delegated into its own function
-		if( configuration.getOutputType() == OutputType.STATIC )
-			return generateStaticLinkCommand();
-		
+		// Creating a static library in gcc/clang uses ar instead of ld via gcc, see
+		// generateArchiveCommands() for that
+		File objectDirectory = configuration.getObjectDirectory();
+
 		// create the command line in which to store the information
 		Commandline commandline = new Commandline();
 		commandline.setExecutable( executable );
 
 		/////// output file name ///////
-		File outputFile = helper.getPlatformSpecificOutputFile();
 		commandline.createArgument().setValue( "-o" );
 		commandline.createArgument().setFile( outputFile );
 		
 		////////////////////////////////////
 		/////// object files to link ///////
 		////////////////////////////////////
-		File objectDirectory = configuration.getObjectDirectory();
 		for( File ofile : helper.getFilesThatNeedLinking(objectDirectory) )
 		{
 			commandline.createArgument().setFile( ofile );
@@ -302,6 +893,12 @@ public class CompilerGCC implements Compiler
 		////// platform architecture //////
 		appendCompilerArchitecture( commandline );
 
+		/////// linker ///////
+		if( linker.getFuseLd() != null )
+			commandline.createArgument().setValue( "-fuse-ld="+linker.getFuseLd() );
+
+		appendLinkTimeOptimization( commandline, true );
+
 		/////// library search paths /////// 
 		for( Library library : configuration.getLibraries() )
 		{
@@ -330,27 +927,190 @@ public class CompilerGCC implements Compiler
 		return commandline;
 	}
 	
-	private Commandline generateStaticLinkCommand()
+	/**
+	 * @return The ar operation to build the static library with: "rcs" (replace, create and
+	 *         write an index), plus "T" for a thin archive
+	 */
+	private String getArchiveOperation()
 	{
-		// gcc/clang create static libraries through the "ar" utility 
-		Commandline commandline = new Commandline();
-		commandline.setExecutable( "ar" );
-		
-		// r=Replace, c=Create, s=Write Index
-		commandline.createArgument().setValue( "rcs" );
-		
-		/////// output file name ///////
-		File outputFile = helper.getPlatformSpecificOutputFile();
-		commandline.createArgument().setFile( outputFile );
-		
-		////////////////////////////////////
-		/////// object files to link ///////
-		////////////////////////////////////
-		File objectDirectory = configuration.getObjectDirectory();
-		for( File ofile : helper.getFilesThatNeedLinking(objectDirectory) )
-		{
-			commandline.createArgument().setFile( ofile );
-		}
+		boolean thin = configuration.isThinArchive() && Platform.getOsPlatform().isMac() == false;
+		return thin ? "rcsT" : "rcs";
+	}
+
+	/**
+	 * Find the files the linker will use for the libraries we link with, looking the way it
+	 * does: the first library directory with a library of the right name wins. Libraries that
+	 * aren't in any of our directories (system libraries) are left out. For thin archives, the
+	 * objects they refer to are included as well. ELF shared libraries are swapped for a file
+	 * holding a hash of their interface (see {@link #getInterfaceFile(File)}).
+	 */
+	private List<File> getLibraryFiles()
+	{
+		this.interfacesHashed = false;
+		List<String> directories = new ArrayList<String>();
+		for( Library library : configuration.getLibraries() )
+		{
+			if( library.getPath() != null )
+				directories.addAll( Arrays.asList(library.getPath().list()) );
+		}
+
+		List<File> found = new ArrayList<File>();
+		for( Library library : configuration.getLibraries() )
+		{
+			for( String name : library.getLibs() )
+			{
+				File file = findLibrary( directories, name );
+				if( file == null )
+					continue;
+
+				// we only take the interface from a shared library, so a change to the code
+				// in it doesn't mean we need linking again
+				File interfaceFile = getInterfaceFile( file );
+				if( interfaceFile != null )
+				{
+					found.add( interfaceFile );
+					continue;
+				}
+
+				// a thin archive only refers to its objects, they're what really change
+				found.add( file );
+				Set<String> members = isThinArchive( file ) ? listArchive( file, true ) : null;
+				if( members != null )
+				{
+					for( String member : members )
+						found.add( new File(member) );
+				}
+			}
+		}
+
+		// keep any new interface hashes, even if we turn out not to need linking
+		if( interfacesHashed )
+			helper.saveBuildState();
+
+		return found;
+	}
+
+	/**
+	 * Get a file that stands in for the given shared library when working out if we need
+	 * linking. It holds a hash of the interface of the library (its soname and the symbols it
+	 * exports, see {@link ElfInterface}) and is only written when that changes, so its
+	 * timestamp and content follow the interface of the library rather than all of it.
+	 * The files are kept in the "abi" directory under the object directory.
+	 *
+	 * @return The interface file, or <code>null</code> if the library isn't an ELF shared
+	 *         library, in which case the library itself has to be used
+	 */
+	private File getInterfaceFile( File library )
+	{
+		String name = library.getName();
+		if( name.endsWith(".so") == false && name.contains(".so.") == false )
+			return null;
+
+		// the hash is kept against the size and timestamp of the library, so we only read the
+		// library again when it changes
+		File interfaceFile = new File( configuration.getObjectDirectory(), "abi/"+name+".abi" );
+		long size = library.length();
+		long lastModified = library.lastModified();
+		FileRecord record = helper.getBuildState().getOrCreateRecord( library );
+		synchronized( record )
+		{
+			if( record.isContentHashValid(size,lastModified) && interfaceFile.exists() )
+				return interfaceFile;
+		}
+
+		// the library has changed since we last looked, see if its interface has
+		task.log( "Reading the interface of "+library, Project.MSG_DEBUG );
+		String hash = ElfInterface.getInterfaceHash( library );
+		if( hash == null )
+			return null;
+
+		synchronized( record )
+		{
+			record.setContentHash( hash, size, lastModified );
+		}
+
+		this.interfacesHashed = true;
+		try
+		{
+			if( interfaceFile.exists() &&
+			    new String(Files.readAllBytes(interfaceFile.toPath()),"UTF-8").trim().equals(hash) )
+			{
+				return interfaceFile;
+			}
+
+			task.log( "Interface of "+library+" has changed", Project.MSG_VERBOSE );
+			interfaceFile.getParentFile().mkdirs();
+			Files.write( interfaceFile.toPath(), (hash+"\n").getBytes("UTF-8") );
+			return interfaceFile;
+		}
+		catch( IOException ioex )
+		{
+			task.log( "Couldn't record the interface of "+library+": "+ioex.getMessage(),
+			          Project.MSG_VERBOSE );
+			return null;
+		}
+	}
+
+	/**
+	 * @return The file for "-l[name]" in the given directories, or <code>null</code> if none
+	 *         of them has it
+	 */
+	private File findLibrary( List<String> directories, String name )
+	{
+		// -l:file.a means exactly that file
+		String[] candidates;
+		if( name.startsWith(":") )
+		{
+			candidates = new String[]{ name.substring(1) };
+		}
+		else
+		{
+			candidates = new String[]{ "lib"+name+".so",
+			                           "lib"+name+".dylib",
+			                           "lib"+name+".dll.a",
+			                           "lib"+name+".a",
+			                           name+".lib",
+			                           name+".dll" };
+		}
+
+		for( String directory : directories )
+		{
+			for( String candidate : candidates )
+			{
+				File file = new File( directory, candidate );
+				if( file.isFile() )
+					return file;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Generate the ar command to put the given objects in the static library.
+	 *
+	 * @param operation The ar operation and modifiers, such as "rcs"
+	 */
+	private Commandline generateStaticLinkCommand( String operation, List<File> ofiles )
+	{
+		// gcc/clang create static libraries through the "ar" utility (see getArchiver())
+		Commandline commandline = new Commandline();
+		commandline.setExecutable( getArchiver() );
+		
+		// r=Replace, c=Create, s=Write Index
+		commandline.createArgument().setValue( operation );
+		
+		/////// output file name ///////
+		File outputFile = helper.getPlatformSpecificOutputFile();
+		commandline.createArgument().setFile( outputFile );
+		
+		////////////////////////////////////
+		/////// object files to link ///////
+		////////////////////////////////////
+		for( File ofile : ofiles )
+		{
+			commandline.createArgument().setFile( ofile );
+		}
 
 		/////// additional args ///////
 		String[] commands = Commandline.translateCommandline( configuration.getLinkerArgs() );
@@ -360,6 +1120,247 @@ public class CompilerGCC implements Compiler
 		return commandline;
 	}
 
+	/**
+	 * Generate the ar commands to bring the static library up to date. When building
+	 * incrementally and there is already a library, only the objects that are new or have
+	 * changed since they were put in it are added, and members whose objects are no longer
+	 * part of the build are taken out. If nothing has changed, there are no commands at all.
+	 * Otherwise the library is built from scratch so nothing from an earlier build is left
+	 * in it.
+	 * <p/>
+	 * A thin archive is built from scratch whenever anything has changed. It only holds the
+	 * names of the objects and their symbols, so that costs next to nothing, and GNU ar can't
+	 * reliably take members out of one.
+	 */
+	private List<Commandline> generateArchiveCommands( List<File> ofiles, String fingerprint )
+	{
+		File archive = helper.getPlatformSpecificOutputFile();
+		String operation = getArchiveOperation();
+		boolean thin = operation.endsWith( "T" );
+
+		// if the command has changed (different options), the library has to be rebuilt
+		Set<String> members = null;
+		if( configuration.isIncremental() &&
+		    archive.exists() &&
+		    isThinArchive(archive) == thin &&
+		    helper.wasLinkedWith(fingerprint) )
+		{
+			members = listArchive( archive, thin );
+		}
+
+		// work out which objects are new or changed, and which members have no object now
+		List<File> changed = new ArrayList<File>( ofiles );
+		Set<String> removed = new HashSet<String>();
+		if( members != null )
+		{
+			changed.clear();
+			removed.addAll( members );
+			for( File ofile : ofiles )
+			{
+				String member = thin ? ofile.getAbsolutePath() : ofile.getName();
+				boolean isNew = removed.remove( member ) == false;
+				if( isNew || isChangedSinceArchived(ofile) )
+					changed.add( ofile );
+			}
+
+			if( changed.isEmpty() && removed.isEmpty() )
+				return new ArrayList<Commandline>();
+		}
+
+		// start from scratch
+		if( members == null || thin )
+		{
+			archive.delete();
+			return generateStaticLinkCommands( operation, ofiles );
+		}
+
+		task.log( "Updating "+changed.size()+" and removing "+removed.size()+" of the objects in "+
+		          archive.getName(), Project.MSG_VERBOSE );
+
+		List<Commandline> commands = new ArrayList<Commandline>();
+		if( removed.isEmpty() == false )
+		{
+			Commandline delete = new Commandline();
+			delete.setExecutable( getArchiver() );
+			delete.createArgument().setValue( "d" );
+			delete.createArgument().setFile( archive );
+			for( String member : removed )
+				delete.createArgument().setValue( member );
+
+			commands.add( delete );
+		}
+
+		// if nothing was added, the index still needs updating for what was taken out
+		if( changed.isEmpty() )
+		{
+			Commandline index = new Commandline();
+			index.setExecutable( getArchiver() );
+			index.createArgument().setValue( "s" );
+			index.createArgument().setFile( archive );
+			commands.add( index );
+		}
+		else
+		{
+			commands.addAll( generateStaticLinkCommands(operation,changed) );
+		}
+
+		return commands;
+	}
+
+	/**
+	 * @return True if the given object isn't the same as when it was put in the static library.
+	 *         This goes by the hash of the object recorded then (see recordArchived()) rather
+	 *         than its timestamp, as an object restored from the compile cache by hard link
+	 *         has the timestamp of the cache entry, which can be older than the library.
+	 */
+	private boolean isChangedSinceArchived( File ofile )
+	{
+		FileRecord record = helper.getBuildState().getRecord( ofile );
+		if( record == null || record.getInputDigest() == null )
+			return true;
+
+		try
+		{
+			String hash = helper.getContentHasher().getHash( ofile );
+			return record.getInputDigest().equals( hash ) == false;
+		}
+		catch( IOException ioex )
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * Record the hash of each of the given objects now that they're in the static library, so
+	 * the next update can tell which of them have changed. The hashes are cached, and have
+	 * already been taken for the digest of the link inputs, so this doesn't read the objects.
+	 */
+	private void recordArchived( List<File> ofiles )
+	{
+		for( File ofile : ofiles )
+		{
+			String hash = null;
+			try
+			{
+				hash = helper.getContentHasher().getHash( ofile );
+			}
+			catch( IOException ioex )
+			{
+				// we'll just put it in the library again next time
+			}
+
+			helper.getBuildState().getOrCreateRecord( ofile ).setInputDigest( hash );
+		}
+	}
+
+	/**
+	 * Generate the ar commands to put the given objects in the static library. This is just
+	 * the one command, unless the ar on mac (which can't read response files) would be given a
+	 * longer command line than we allow. Then the objects are added a piece at a time, with only
+	 * the last command writing the index.
+	 *
+	 * @param operation The ar operation and modifiers, such as "rcs"
+	 */
+	private List<Commandline> generateStaticLinkCommands( String operation, List<File> ofiles )
+	{
+		List<Commandline> commands = new ArrayList<Commandline>();
+		long limit = configuration.getResponseFileLimit();
+		Commandline whole = generateStaticLinkCommand( operation, ofiles );
+		if( Platform.getOsPlatform().isMac() == false || getLength(whole) <= limit )
+		{
+			commands.add( whole );
+			return commands;
+		}
+
+		long baseLength = getLength( generateStaticLinkCommand(operation,new ArrayList<File>()) );
+		String withoutIndex = operation.replace( "s", "" );
+		List<File> chunk = new ArrayList<File>();
+		long length = baseLength;
+		for( File ofile : ofiles )
+		{
+			long argumentLength = ofile.getAbsolutePath().length() + 1;
+			if( chunk.isEmpty() == false && length+argumentLength > limit )
+			{
+				commands.add( generateStaticLinkCommand(withoutIndex,chunk) );
+				chunk = new ArrayList<File>();
+				length = baseLength;
+			}
+
+			chunk.add( ofile );
+			length += argumentLength;
+		}
+
+		commands.add( generateStaticLinkCommand(operation,chunk) );
+		task.log( "Archiving "+ofiles.size()+" objects in "+commands.size()+" steps",
+		          Project.MSG_VERBOSE );
+		return commands;
+	}
+
+	/**
+	 * @return The names of the members of the given archive (the full paths of the objects for
+	 *         a thin archive), or <code>null</code> if they can't be read
+	 */
+	private Set<String> listArchive( File archive, boolean thin )
+	{
+		String[] command = new String[]{ getArchiver(), "t", archive.getAbsolutePath() };
+		JobProcess process = new JobProcess( command );
+		try
+		{
+			if( process.run() != 0 )
+			{
+				process.logOutput( task, Project.MSG_VERBOSE );
+				return null;
+			}
+
+			Set<String> members = new TreeSet<String>();
+			for( String member : process.getOutput().split("\\r?\\n") )
+			{
+				// the mac ar lists its symbol table as a member
+				if( member.isEmpty() || member.startsWith("__.SYMDEF") )
+					continue;
+
+				if( thin && new File(member).isAbsolute() == false )
+					member = new File( archive.getParentFile(), member ).getAbsolutePath();
+
+				members.add( member );
+			}
+
+			return members;
+		}
+		catch( IOException ioex )
+		{
+			task.log( "Could not list the contents of "+archive+", rebuilding it: "+
+			          ioex.getMessage(), Project.MSG_VERBOSE );
+			return null;
+		}
+	}
+
+	/**
+	 * @return True if the given file is a GNU thin archive
+	 */
+	private boolean isThinArchive( File archive )
+	{
+		byte[] magic = new byte[8];
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile( archive, "r" );
+			try
+			{
+				file.readFully( magic );
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+
+		return new String( magic ).equals( "!<thin>\n" );
+	}
+
 	//////////////////////////////////////////////////////////////////////////////////////////
 	///////////////////////////////// Private Helper Methods /////////////////////////////////
 	//////////////////////////////////////////////////////////////////////////////////////////
@@ -368,6 +1369,116 @@ public class CompilerGCC implements Compiler
 		task.log( message, Project.MSG_DEBUG );
 	}
 
+	/**
+	 * Run a job that doesn't go through the scheduler (the precompiled header, the link),
+	 * taking a token from the shared job server for it if there is one and we're asked to.
+	 */
+	private int runJob( Execute runner, boolean takeToken ) throws IOException
+	{
+		setJobEnvironment( runner );
+		if( jobServer == null || takeToken == false )
+			return runner.execute();
+
+		try
+		{
+			jobServer.acquire();
+		}
+		catch( InterruptedException ie )
+		{
+			throw new BuildException( "Interrupted while waiting to start a job" );
+		}
+
+		try
+		{
+			return runner.execute();
+		}
+		finally
+		{
+			jobServer.release();
+		}
+	}
+
+	/**
+	 * Pass the shared job server on to the process, so anything that knows how (such as
+	 * <code>-flto=jobserver</code>) takes its jobs from the same pool
+	 */
+	private void setJobEnvironment( Execute runner )
+	{
+		if( jobServer != null && jobServer.getEnvironment().length > 0 )
+			runner.setEnvironment( jobServer.getEnvironment() );
+	}
+
+	/**
+	 * Get the command to run for the given command line. If it is longer than the response
+	 * file limit, its arguments are written to the given response file and the command just
+	 * refers to that ("@file"), which gcc, clang and binutils all understand.
+	 */
+	private String[] getCommandline( Commandline commandline, File responseFile )
+	{
+		if( getLength(commandline) <= configuration.getResponseFileLimit() )
+			return commandline.getCommandline();
+
+		task.log( "Writing response file ["+responseFile+"]", Project.MSG_VERBOSE );
+		try
+		{
+			// quote everything, backslashes and quotes in the arguments have to be escaped
+			PrintWriter writer = new PrintWriter( responseFile );
+			for( String argument : commandline.getArguments() )
+			{
+				argument = argument.replace( "\\", "\\\\" ).replace( "\"", "\\\"" );
+				writer.println( "\"" + argument + "\"" );
+			}
+
+			writer.close();
+		}
+		catch( IOException ioex )
+		{
+			throw new BuildException( "Problem writing response file: " + ioex.getMessage(), ioex );
+		}
+
+		return new String[]{ commandline.getExecutable(), "@"+responseFile.getAbsolutePath() };
+	}
+
+	/**
+	 * @return The length of the given command line, as near as we can tell
+	 */
+	private long getLength( Commandline commandline )
+	{
+		long length = commandline.getExecutable().length();
+		for( String argument : commandline.getArguments() )
+			length += argument.length() + 1;
+
+		return length;
+	}
+
+	/**
+	 * @return True if the shared job pool is passed on to the processes we run in MAKEFLAGS,
+	 *         so they can take their jobs from it
+	 */
+	private boolean isJobServerShared()
+	{
+		if( jobServer == null )
+			return false;
+
+		// if we're in make's pool, our children get the same MAKEFLAGS we did
+		String makeflags = System.getenv( "MAKEFLAGS" );
+		for( String variable : jobServer.getEnvironment() )
+		{
+			if( variable.startsWith("MAKEFLAGS=") )
+				makeflags = variable;
+		}
+
+		return makeflags != null && makeflags.contains( "--jobserver-auth=" );
+	}
+
+	private BuildException compilerProblem( IOException e )
+	{
+		String msg = "There was a problem running the compiler, this usually occurs when " + 
+		             "it can't be found, make sure it is on your path. full error: " +
+		             e.getMessage();
+		return new BuildException( msg, e );
+	}
+
 	//////////////////////////////////////////////////////////////////////////////////////////
 	//////////////////////////// Private Inner Class: CompileTask ////////////////////////////
 	//////////////////////////////////////////////////////////////////////////////////////////
@@ -376,19 +1487,66 @@ public class CompilerGCC implements Compiler
 		private File sourceFile;
 		private File objectDirectory;
 		private Commandline command;
+		private String cacheKey; // null if we aren't caching this file
 
 		public CompileTask( File sourceFile, File objectDirectory, Commandline command )
 		{
 			this.sourceFile = sourceFile;
 			this.objectDirectory = objectDirectory;
 			this.command = command;
+			this.cacheKey = null;
 		}
 		
 		public void run()
+		{
+			if( useCached() )
+				return;
+
+			compiled( compile(), getWorkingDirectory() );
+		}
+
+		private File getObjectFile()
+		{
+			return helper.getOFile( objectDirectory, sourceFile );
+		}
+
+		/**
+		 * See if we already have the object for this file in the cache, and if we do put it in
+		 * place and record its dependencies.
+		 *
+		 * @return True if the object came from the cache and doesn't need compiling
+		 */
+		private boolean useCached()
+		{
+			if( cache == null || sourceFile.getName().endsWith(".rc") )
+				return false;
+
+			File ofile = getObjectFile();
+			this.cacheKey = getCacheKey( ofile );
+			if( cacheKey != null && restoreFromCache(cacheKey,ofile) )
+			{
+				recordDependencies( ofile, getWorkingDirectory() );
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Compile the file on its own.
+		 *
+		 * @return How long the compile took, in milliseconds
+		 * @throws BuildException If the compile fails
+		 */
+		private long compile() throws BuildException
 		{
 			Commandline theCommand;
 			// get the name of the output file
-			File ofile = helper.getOFile( objectDirectory, sourceFile );
+			File ofile = getObjectFile();
+
+			// the object might be a hard link to a cache entry (even if the cache is now
+			// turned off), make sure we write a new file rather than over the top of the entry
+			ofile.delete();
 			if( sourceFile.getName().endsWith(".rc") )
 			{	
 				// Is this a win32 resource file?
@@ -411,40 +1569,415 @@ public class CompilerGCC implements Compiler
 				theCommand.createArgument().setFile( sourceFile );
 				theCommand.createArgument().setValue( "-o" );
 				theCommand.createArgument().setFile( ofile );
+
+				// have gcc tell us which (non-system) headers the file includes
+				theCommand.createArgument().setValue( "-MMD" );
+				theCommand.createArgument().setValue( "-MF" );
+				theCommand.createArgument().setFile( helper.getDependencyFile(objectDirectory,
+				                                                              sourceFile) );
+
+				if( usePrecompiledHeader(sourceFile) )
+					appendPrecompiledHeader( theCommand );
 			}
 
-			// create the execution object
-			Execute runner = new Execute( new LogStreamHandler( configuration.getTask(),
-			                                                    Project.MSG_INFO,
-			                                                    Project.MSG_WARN) );
-			
-			//runner.setAntRun( project );
-			runner.setCommandline( theCommand.getCommandline() );
+			// create the process, its output is logged in one go when it is done
+			File responseFile = new File( objectDirectory, ofile.getName()+".rsp" );
+			JobProcess process = new JobProcess( getCommandline(theCommand,responseFile) );
+			if( jobServer != null )
+				process.setEnvironment( jobServer.getEnvironment() );
 
 			// run the command
 			try
 			{
 				task.log( "  " + sourceFile.getName() );
 				task.log( theCommand.toString(), Project.MSG_DEBUG );
-				int exitValue = runner.execute();
+				long startTime = System.currentTimeMillis();
+				int exitValue = process.run();
+				long compileTime = System.currentTimeMillis() - startTime;
+				process.logOutput( task, Project.MSG_WARN );
+				if( exitValue != 0 )
+				{
+					// make sure a stale object from an earlier build isn't mistaken
+					// for an up to date one next time around
+					ofile.delete();
+					throw new BuildException( "Compile Failed for "+sourceFile.getName()+
+					                          " (exit value: " + exitValue + ")" );
+				}
+
+				return compileTime;
+			}
+			catch( IOException e )
+			{
+				ofile.delete();
+				throw compilerProblem( e );
+			}
+			finally
+			{
+				responseFile.delete();
+			}
+		}
+
+		/**
+		 * The file has been compiled, store the object in the cache and record what we need
+		 * to know about it for next time.
+		 *
+		 * @param baseDirectory The directory the compiler ran in, which any relative paths in
+		 *                      the dependency file are relative to
+		 */
+		private void compiled( long compileTime, File baseDirectory )
+		{
+			File ofile = getObjectFile();
+			if( cacheKey != null )
+				storeInCache( cacheKey, ofile );
+
+			recordDependencies( ofile, baseDirectory );
+			helper.getBuildState().getOrCreateRecord(sourceFile).setCompileTime( compileTime );
+		}
+
+		/**
+		 * Run the source file through the preprocessor and generate the key its object would be
+		 * stored under in the cache. This also generates the dependency file for the source, so
+		 * we have it whether the object comes from the cache or not. Returns null if the file
+		 * can't be preprocessed, in which case it should just be compiled (which will report
+		 * whatever the problem is).
+		 */
+		private String getCacheKey( File ofile )
+		{
+			String name = sourceFile.getName();
+			File preprocessed = new File( objectDirectory,
+			                              name.substring(0,name.lastIndexOf('.'))+".i" );
+
+			Commandline preprocess = (Commandline)command.clone();
+			preprocess.createArgument().setValue( "-E" );
+			preprocess.createArgument().setFile( sourceFile );
+			preprocess.createArgument().setValue( "-o" );
+			preprocess.createArgument().setFile( preprocessed );
+			preprocess.createArgument().setValue( "-MMD" );
+			preprocess.createArgument().setValue( "-MF" );
+			preprocess.createArgument().setFile( helper.getDependencyFile(objectDirectory,
+			                                                              sourceFile) );
+			preprocess.createArgument().setValue( "-MT" );
+			preprocess.createArgument().setFile( ofile );
+			if( usePrecompiledHeader(sourceFile) )
+				appendPrecompiledHeader( preprocess );
+
+			// anything interesting will be reported again by the compile if we need one
+			File responseFile = new File( objectDirectory, preprocessed.getName()+".rsp" );
+			JobProcess process = new JobProcess( getCommandline(preprocess,responseFile) );
+			try
+			{
+				int exitValue = process.run();
+				process.logOutput( task, Project.MSG_VERBOSE );
+				if( exitValue != 0 )
+					return null;
+
+				// include paths and defines are already accounted for by the preprocessed
+				// source, leaving them out means they can differ between workspaces
+				boolean debug = false;
+				CacheKey key = new CacheKey();
+				key.add( compilerIdentity );
+				key.add( name.substring(name.lastIndexOf('.')) ); // language
+				for( String argument : command.getArguments() )
+				{
+					if( argument.startsWith("-I") || argument.startsWith("-D") )
+						continue;
+
+					if( argument.startsWith("-g") && argument.equals("-g0") == false )
+						debug = true;
+
+					key.add( argument );
+				}
+
+				// debug info records where the source was compiled and where each line came
+				// from, so only share objects with debug info between identical locations
+				if( debug )
+					key.add( System.getProperty("user.dir") );
+
+				key.addPreprocessed( preprocessed, debug );
+				return key.getKey();
+			}
+			catch( IOException ioex )
+			{
+				task.log( "Could not preprocess "+name+", not using cache for it: "+
+				          ioex.getMessage(), Project.MSG_VERBOSE );
+				return null;
+			}
+			finally
+			{
+				preprocessed.delete();
+				responseFile.delete();
+			}
+		}
+
+		private boolean restoreFromCache( String cacheKey, File ofile )
+		{
+			try
+			{
+				// never wait longer on the shared cache than it would take to compile
+				FileRecord record = helper.getBuildState().getRecord( sourceFile );
+				long maxWait = record == null ? 0 : Math.max( 0, record.getCompileTime() );
+				if( cache.restore(cacheKey,ofile,maxWait) == false )
+					return false;
+
+				task.log( "  " + sourceFile.getName() + " (cached)" );
+				return true;
+			}
+			catch( IOException ioex )
+			{
+				task.log( "Could not restore "+ofile.getName()+" from compile cache: "+
+				          ioex.getMessage(), Project.MSG_WARN );
+				return false;
+			}
+		}
+
+		private void storeInCache( String cacheKey, File ofile )
+		{
+			try
+			{
+				cache.store( cacheKey, ofile );
+			}
+			catch( IOException ioex )
+			{
+				// no harm done, we just won't get a hit next time
+				task.log( "Could not store "+ofile.getName()+" in compile cache: "+
+				          ioex.getMessage(), Project.MSG_WARN );
+			}
+		}
+
+		/**
+		 * Read the dependency file gcc generated for this source file and record the list of
+		 * headers it depends on in the build state so the next incremental build can check
+		 * them. If there isn't one (resource files) we record that the object depends on the
+		 * source file alone.
+		 */
+		private void recordDependencies( File ofile, File baseDirectory )
+		{
+			File dependencyFile = helper.getDependencyFile( objectDirectory, sourceFile );
+			if( dependencyFile.exists() == false )
+			{
+				helper.recordCompiled( sourceFile, new ArrayList<File>(), commandFingerprint );
+				return;
+			}
+
+			try
+			{
+				List<File> dependencies = DependencyFile.parse( dependencyFile, baseDirectory );
+				if( usePrecompiledHeader(sourceFile) )
+					dependencies.addAll( pchDependencies );
+
+				helper.recordCompiled( sourceFile, dependencies, commandFingerprint );
+			}
+			catch( IOException ioex )
+			{
+				task.log( "Could not read dependency file "+dependencyFile+": "+ioex.getMessage(),
+				          Project.MSG_WARN );
+				helper.getBuildState().removeRecord( sourceFile );
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////// Private Inner Class: BatchCompileTask //////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Compiles several files with one run of the compiler. GCC won't take <code>-o</code> (or
+	 * <code>-MF</code>) with more than one source file, so the compiler is run in the object
+	 * directory and left to name the objects and dependency files itself, which it does from
+	 * the name of each source file, just as {@link BuildHelper#getOFile(File,File)} does. The
+	 * sources and include paths are passed with their full paths, and relative paths in the
+	 * compiler arguments are made absolute (see {@link #makePathsAbsolute(String[],File)}), so
+	 * the batch finds the same headers as a file compiled on its own.
+	 * <p/>
+	 * If the batch fails, each of its files is compiled again on its own so that we report
+	 * exactly which of them failed.
+	 */
+	private class BatchCompileTask implements Runnable
+	{
+		private List<CompileTask> batch;
+		private File objectDirectory;
+		private Commandline command;
+
+		public BatchCompileTask( List<CompileTask> batch,
+		                         File objectDirectory,
+		                         Commandline command )
+		{
+			this.batch = batch;
+			this.objectDirectory = objectDirectory;
+			this.command = command;
+		}
+
+		public void run()
+		{
+			// anything we have in the cache doesn't need compiling
+			List<CompileTask> toCompile = new ArrayList<CompileTask>();
+			for( CompileTask compileTask : batch )
+			{
+				if( compileTask.useCached() == false )
+					toCompile.add( compileTask );
+			}
+
+			if( toCompile.size() == 1 )
+				toCompile.get(0).run();
+			else if( toCompile.size() > 1 && compile(toCompile) == false )
+				compileSeparately( toCompile );
+		}
+
+		/**
+		 * Compile the given files together.
+		 *
+		 * @return True if the compile worked, false if it failed
+		 */
+		private boolean compile( List<CompileTask> toCompile )
+		{
+			Commandline theCommand = new Commandline();
+			theCommand.setExecutable( command.getExecutable() );
+			theCommand.addArguments( makePathsAbsolute(command.getArguments(),
+			                                           getWorkingDirectory()) );
+			theCommand.createArgument().setValue( "-MMD" );
+			if( usePrecompiledHeader(toCompile.get(0).sourceFile) )
+				appendPrecompiledHeader( theCommand );
+
+			long totalSize = 0;
+			for( CompileTask compileTask : toCompile )
+			{
+				compileTask.getObjectFile().delete(); // might be linked to a cache entry
+				theCommand.createArgument().setFile( compileTask.sourceFile );
+				totalSize += compileTask.sourceFile.length();
+				task.log( "  " + compileTask.sourceFile.getName() );
+			}
+
+			File ofile = toCompile.get(0).getObjectFile();
+			File responseFile = new File( objectDirectory, ofile.getName()+".batch.rsp" );
+			JobProcess process = new JobProcess( getCommandline(theCommand,responseFile) );
+			process.setWorkingDirectory( objectDirectory );
+			if( jobServer != null )
+				process.setEnvironment( jobServer.getEnvironment() );
+
+			try
+			{
+				task.log( theCommand.toString(), Project.MSG_DEBUG );
+				long startTime = System.currentTimeMillis();
+				int exitValue = process.run();
+				long compileTime = System.currentTimeMillis() - startTime;
 				if( exitValue != 0 )
 				{
-					throw new BuildException( "Compile Failed, (exit value: " + exitValue + ")" );
+					// the errors will be reported again when we find the file that caused them
+					process.logOutput( task, Project.MSG_VERBOSE );
+					task.log( "Batch of "+toCompile.size()+" files failed (exit value: "+
+					          exitValue+"), compiling them one at a time", Project.MSG_VERBOSE );
+					for( CompileTask compileTask : toCompile )
+						compileTask.getObjectFile().delete();
+
+					return false;
 				}
+
+				// we only know how long the batch took, share it out by size
+				process.logOutput( task, Project.MSG_WARN );
+				for( CompileTask compileTask : toCompile )
+				{
+					long size = compileTask.sourceFile.length();
+					compileTask.compiled( totalSize == 0 ? compileTime/toCompile.size() :
+					                                       compileTime*size/totalSize,
+					                      objectDirectory );
+				}
+
+				return true;
 			}
 			catch( IOException e )
 			{
-				String msg = "There was a problem running the compiler, this usually occurs when " + 
-				             "it can't be found, make sure it is on your path. full error: " +
-				             e.getMessage();
-				throw new BuildException( msg, e );
+				for( CompileTask compileTask : toCompile )
+					compileTask.getObjectFile().delete();
+
+				throw compilerProblem( e );
+			}
+			finally
+			{
+				responseFile.delete();
 			}
 		}
+
+		/**
+		 * Compile each of the given files on its own, after the batch they were in failed.
+		 * Unless we're keeping going after failures, we stop at the first one that fails.
+		 */
+		private void compileSeparately( List<CompileTask> toCompile )
+		{
+			List<String> failed = new ArrayList<String>();
+			for( CompileTask compileTask : toCompile )
+			{
+				try
+				{
+					compileTask.compiled( compileTask.compile(), getWorkingDirectory() );
+				}
+				catch( BuildException be )
+				{
+					boolean interrupted = Thread.currentThread().isInterrupted();
+					if( configuration.isKeepGoing() == false || interrupted )
+						throw be;
+
+					task.log( be.getMessage(), Project.MSG_ERR );
+					failed.add( compileTask.sourceFile.getName() );
+				}
+			}
+
+			if( failed.size() == 1 )
+				throw new BuildException( "Compile Failed for "+failed.get(0) );
+			else if( failed.size() > 1 )
+				throw new BuildException( "Compile Failed for "+failed );
+		}
 	}
 
-	
 	//----------------------------------------------------------
 	//                     STATIC METHODS
 	//----------------------------------------------------------
+	/**
+	 * @return The directory the compiler runs in when we don't say otherwise, which relative
+	 *         paths in the compiler arguments are relative to
+	 */
+	private static File getWorkingDirectory()
+	{
+		return new File( System.getProperty("user.dir") );
+	}
+
+	/**
+	 * Make the paths given to any of the {@link #PATH_OPTIONS} in the given arguments absolute,
+	 * resolving them against the given directory. Paths relative to the sysroot ("=dir" or
+	 * "$SYSROOT/dir") are left alone.
+	 */
+	private static String[] makePathsAbsolute( String[] arguments, File baseDirectory )
+	{
+		String[] result = arguments.clone();
+		for( int i = 0; i < result.length; i++ )
+		{
+			for( String option : PATH_OPTIONS )
+			{
+				if( result[i].equals(option) && option.endsWith("=") == false )
+				{
+					if( i+1 < result.length )
+						result[i+1] = makePathAbsolute( result[++i], baseDirectory );
+
+					break;
+				}
+				else if( result[i].startsWith(option) && result[i].equals("-I-") == false )
+				{
+					String path = result[i].substring( option.length() );
+					result[i] = option + makePathAbsolute( path, baseDirectory );
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static String makePathAbsolute( String path, File baseDirectory )
+	{
+		if( path.isEmpty() || path.startsWith("=") || path.startsWith("$SYSROOT") ||
+		    new File(path).isAbsolute() )
+		{
+			return path;
+		}
 
+		return new File( baseDirectory, path ).getPath();
+	}
 }
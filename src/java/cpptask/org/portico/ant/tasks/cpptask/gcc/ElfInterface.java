@@ -0,0 +1,331 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.gcc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.portico.ant.tasks.cpptask.state.ContentHasher;
+
+/**
+ * Reads the interface of an ELF shared library: its soname and the symbols it exports, with
+ * their versions. That is everything a program linked against the library takes from it, so
+ * if the interface hasn't changed, nothing linked against the library needs linking again.
+ * The addresses of the symbols are left out (they move whenever the code changes), but the
+ * size of exported data is kept, as programs that use it have space for it set aside.
+ */
+public class ElfInterface
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// section types
+	private static final int SHT_DYNAMIC = 6;
+	private static final int SHT_DYNSYM = 11;
+	private static final int SHT_GNU_VERDEF = 0x6ffffffd;
+	private static final int SHT_GNU_VERSYM = 0x6fffffff;
+
+	private static final int DT_NULL = 0;
+	private static final int DT_SONAME = 14;
+
+	private static final int STT_OBJECT = 1;
+	private static final int STB_LOCAL = 0;
+	private static final int STV_HIDDEN = 2;
+	private static final int STV_INTERNAL = 1;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private RandomAccessFile file;
+	private ByteOrder order;
+	private boolean is64;
+	private List<long[]> sections; // type, offset, size, link, entry size
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private ElfInterface( RandomAccessFile file )
+	{
+		this.file = file;
+		this.sections = new ArrayList<long[]>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The lines describing the interface, or <code>null</code> if this isn't ELF
+	 */
+	private List<String> readInterface() throws IOException
+	{
+		ByteBuffer ident = read( 0, 16 );
+		if( ident.getInt(0) != 0x7f454c46 ) // \177ELF
+			return null;
+
+		this.is64 = ident.get(4) == 2;
+		this.order = ident.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		readSections();
+
+		List<String> lines = new ArrayList<String>();
+		for( long[] section : sections )
+		{
+			if( section[0] == SHT_DYNAMIC )
+				lines.addAll( readSoname(section) );
+			else if( section[0] == SHT_DYNSYM )
+				lines.addAll( readSymbols(section) );
+		}
+
+		Collections.sort( lines );
+		return lines;
+	}
+
+	private void readSections() throws IOException
+	{
+		ByteBuffer header = read( 0, is64 ? 64 : 52 );
+		long offset = is64 ? header.getLong(40) : unsigned( header.getInt(32) );
+		int entrySize = header.getShort( is64 ? 58 : 46 ) & 0xffff;
+		int count = header.getShort( is64 ? 60 : 48 ) & 0xffff;
+
+		ByteBuffer table = read( offset, entrySize*count );
+		for( int i = 0; i < count; i++ )
+		{
+			int base = i * entrySize;
+			if( is64 )
+			{
+				sections.add( new long[]{ table.getInt(base+4),
+				                          table.getLong(base+24),
+				                          table.getLong(base+32),
+				                          table.getInt(base+40),
+				                          table.getLong(base+56) } );
+			}
+			else
+			{
+				sections.add( new long[]{ table.getInt(base+4),
+				                          unsigned( table.getInt(base+16) ),
+				                          unsigned( table.getInt(base+20) ),
+				                          table.getInt(base+24),
+				                          unsigned( table.getInt(base+36) ) } );
+			}
+		}
+	}
+
+	private List<String> readSoname( long[] dynamic ) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		ByteBuffer strings = readSection( (int)dynamic[3] );
+		ByteBuffer entries = readSection( sections.indexOf(dynamic) );
+		int entrySize = is64 ? 16 : 8;
+		for( int base = 0; base+entrySize <= entries.limit(); base += entrySize )
+		{
+			long tag = is64 ? entries.getLong(base) : entries.getInt(base);
+			long value = is64 ? entries.getLong(base+8) : unsigned( entries.getInt(base+4) );
+			if( tag == DT_NULL )
+				break;
+			else if( tag == DT_SONAME )
+				lines.add( "soname "+getString(strings,value) );
+		}
+
+		return lines;
+	}
+
+	private List<String> readSymbols( long[] dynsym ) throws IOException
+	{
+		ByteBuffer strings = readSection( (int)dynsym[3] );
+		ByteBuffer symbols = readSection( sections.indexOf(dynsym) );
+		Map<Integer,String> versions = readVersionNames();
+		ByteBuffer versym = null;
+		for( int i = 0; i < sections.size(); i++ )
+		{
+			if( sections.get(i)[0] == SHT_GNU_VERSYM )
+				versym = readSection( i );
+		}
+
+		List<String> lines = new ArrayList<String>();
+		int entrySize = is64 ? 24 : 16;
+		for( int index = 1; (index+1)*entrySize <= symbols.limit(); index++ )
+		{
+			int base = index * entrySize;
+			long name = unsigned( symbols.getInt(base) );
+			int info = symbols.get( base + (is64 ? 4 : 12) ) & 0xff;
+			int other = symbols.get( base + (is64 ? 5 : 13) ) & 0xff;
+			int sectionIndex = symbols.getShort( base + (is64 ? 6 : 14) ) & 0xffff;
+			long size = is64 ? symbols.getLong(base+16) : unsigned( symbols.getInt(base+8) );
+
+			// only what is defined here and visible to others
+			int visibility = other & 0x3;
+			if( sectionIndex == 0 ||
+			    (info >> 4) == STB_LOCAL ||
+			    visibility == STV_HIDDEN ||
+			    visibility == STV_INTERNAL )
+			{
+				continue;
+			}
+
+			StringBuilder line = new StringBuilder( "symbol " );
+			line.append( getString(strings,name) );
+			if( versym != null && (index+1)*2 <= versym.limit() )
+			{
+				int version = versym.getShort( index*2 ) & 0xffff;
+				String versionName = versions.get( version & 0x7fff );
+				if( versionName != null )
+					line.append( (version & 0x8000) == 0 ? "@@" : "@" ).append( versionName );
+			}
+
+			line.append( " bind=" ).append( info >> 4 );
+			line.append( " type=" ).append( info & 0xf );
+			line.append( " visibility=" ).append( visibility );
+			if( (info & 0xf) == STT_OBJECT )
+				line.append( " size=" ).append( size );
+
+			lines.add( line.toString() );
+		}
+
+		return lines;
+	}
+
+	/**
+	 * @return The names of the versions this library defines, by version index
+	 */
+	private Map<Integer,String> readVersionNames() throws IOException
+	{
+		Map<Integer,String> names = new HashMap<Integer,String>();
+		for( int i = 0; i < sections.size(); i++ )
+		{
+			long[] section = sections.get( i );
+			if( section[0] != SHT_GNU_VERDEF )
+				continue;
+
+			ByteBuffer strings = readSection( (int)section[3] );
+			ByteBuffer verdef = readSection( i );
+			int offset = 0;
+			while( offset+20 <= verdef.limit() )
+			{
+				int index = verdef.getShort( offset+4 ) & 0xffff;
+				long aux = unsigned( verdef.getInt(offset+12) );
+				long next = unsigned( verdef.getInt(offset+16) );
+				if( offset+aux+8 <= verdef.limit() )
+				{
+					long name = unsigned( verdef.getInt((int)(offset+aux)) );
+					names.put( index, getString(strings,name) );
+				}
+
+				if( next == 0 )
+					break;
+
+				offset += next;
+			}
+		}
+
+		return names;
+	}
+
+	private ByteBuffer readSection( int index ) throws IOException
+	{
+		if( index < 0 || index >= sections.size() )
+			return ByteBuffer.allocate( 0 );
+
+		long[] section = sections.get( index );
+		return read( section[1], section[2] );
+	}
+
+	private ByteBuffer read( long offset, long length ) throws IOException
+	{
+		if( offset < 0 || length < 0 || offset+length > file.length() )
+			throw new IOException( "Not a valid ELF file" );
+
+		byte[] bytes = new byte[(int)length];
+		file.seek( offset );
+		file.readFully( bytes );
+		ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		buffer.order( order == null ? ByteOrder.BIG_ENDIAN : order );
+		return buffer;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get a hash of the interface of the given shared library.
+	 *
+	 * @return The hash as a hex string, or <code>null</code> if the file isn't an ELF file
+	 *         (a Mac or Windows library) or can't be read
+	 */
+	public static String getInterfaceHash( File library )
+	{
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile( library, "r" );
+			try
+			{
+				List<String> lines = new ElfInterface(file).readInterface();
+				if( lines == null )
+					return null;
+
+				MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+				for( String line : lines )
+				{
+					digest.update( line.getBytes(UTF8) );
+					digest.update( (byte)'\n' );
+				}
+
+				return ContentHasher.toHex( digest.digest() );
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+		catch( Exception e )
+		{
+			// anything we can't read is just treated as a whole file
+			return null;
+		}
+	}
+
+	private static String getString( ByteBuffer strings, long offset )
+	{
+		int start = (int)offset;
+		int end = start;
+		while( end < strings.limit() && strings.get(end) != 0 )
+			end++;
+
+		if( start >= end )
+			return "";
+
+		byte[] bytes = new byte[end-start];
+		for( int i = 0; i < bytes.length; i++ )
+			bytes[i] = strings.get( start+i );
+
+		return new String( bytes, UTF8 );
+	}
+
+	private static long unsigned( int value )
+	{
+		return value & 0xffffffffL;
+	}
+}
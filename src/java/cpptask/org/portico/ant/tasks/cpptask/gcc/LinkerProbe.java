@@ -0,0 +1,115 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.gcc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.portico.ant.tasks.cpptask.JobProcess;
+import org.portico.ant.tasks.cpptask.Linker;
+
+/**
+ * Finds out which linkers a compiler can use through <code>-fuse-ld</code>, by asking it to
+ * run each of them with <code>--version</code>. The answer for each compiler is found once and
+ * shared by every task in the JVM.
+ */
+public class LinkerProbe
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** The linkers we know about, fastest first */
+	private static final Linker[] BY_SPEED = new Linker[]{ Linker.MOLD,
+	                                                       Linker.LLD,
+	                                                       Linker.GOLD,
+	                                                       Linker.BFD };
+
+	private static final Map<String,List<Linker>> AVAILABLE = new HashMap<String,List<Linker>>();
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private LinkerProbe()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @param task The task to log against
+	 * @param executable The compiler that runs the link
+	 * @return The linkers the compiler can use, fastest first
+	 */
+	public static synchronized List<Linker> getAvailable( Task task, String executable )
+	{
+		List<Linker> available = AVAILABLE.get( executable );
+		if( available != null )
+			return available;
+
+		available = new ArrayList<Linker>();
+		for( Linker linker : BY_SPEED )
+		{
+			if( isAvailable(executable,linker) )
+				available.add( linker );
+		}
+
+		task.log( "Linkers available to "+executable+": "+available, Project.MSG_VERBOSE );
+		AVAILABLE.put( executable, available );
+		return available;
+	}
+
+	/**
+	 * Work out which linker to actually use for the one asked for. {@link Linker#AUTO} is the
+	 * fastest one the compiler can use, or {@link Linker#DEFAULT} if it can't use any of them.
+	 */
+	public static Linker resolve( Task task, String executable, Linker linker )
+	{
+		if( linker != Linker.AUTO )
+			return linker;
+
+		List<Linker> available = getAvailable( task, executable );
+		return available.isEmpty() ? Linker.DEFAULT : available.get( 0 );
+	}
+
+	private static boolean isAvailable( String executable, Linker linker )
+	{
+		String[] command = new String[]{ executable,
+		                                 "-fuse-ld="+linker.getFuseLd(),
+		                                 "-Wl,--version" };
+		try
+		{
+			return new JobProcess(command).run() == 0;
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.jobs;
+
+/**
+ * A pool of job tokens shared by everything running in the build, in the same way as the GNU
+ * make jobserver. A job (a compile, a link) takes a token before it starts and gives it back
+ * when it finishes, so the number of jobs running at once across every task that shares the
+ * pool never goes over its size. See {@link SharedJobServer} for how the pool for a build is
+ * found.
+ * <p/>
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface JobServer
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Take a token, waiting until one is free.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException;
+
+	/**
+	 * Give back a token taken with {@link #acquire()}.
+	 */
+	public void release();
+
+	/**
+	 * @return The environment variables ("NAME=value") that let a child process (such as
+	 *         <code>gcc -flto=jobserver</code> or make) take part in the pool, or an empty
+	 *         array if it can't be shared with children
+	 */
+	public String[] getEnvironment();
+
+	/**
+	 * @return A description of the pool for log messages
+	 */
+	public String getDescription();
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.jobs;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A {@link JobServer} that only lives in this JVM. It is shared by every task in the build, but
+ * can't be passed on to child processes. Used where we can't create a named pipe to share.
+ */
+public class LocalJobServer implements JobServer
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int size;
+	private Semaphore tokens;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public LocalJobServer( int size )
+	{
+		this.size = size;
+		this.tokens = new Semaphore( size, true );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public void acquire() throws InterruptedException
+	{
+		tokens.acquire();
+	}
+
+	public void release()
+	{
+		tokens.release();
+	}
+
+	public String[] getEnvironment()
+	{
+		return new String[0];
+	}
+
+	public String getDescription()
+	{
+		return size+" jobs";
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,268 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.jobs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A {@link JobServer} that uses the GNU make jobserver protocol: the tokens are bytes in a pipe
+ * (a named pipe, or a pair of file descriptors we inherited). Taking a token is reading a byte
+ * and giving it back is writing the same byte back. On top of the tokens in the pipe, every
+ * process in the pool has one token of its own (the "implicit" token, the one make counted when
+ * it started us), so we can always run at least one job.
+ * <p/>
+ * Reading from the pipe blocks and can't be interrupted, so a single background thread does the
+ * reading, and only when someone is waiting for a token. Threads waiting in {@link #acquire()}
+ * just wait for it, which can be interrupted. Any token read for a thread that has since given
+ * up is written straight back so we don't sit on tokens others could use.
+ */
+public class PipeJobServer implements JobServer
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private InputStream input;
+	private OutputStream output;
+	private String[] environment;
+	private String description;
+
+	// all guarded by this
+	private boolean implicitFree;
+	private Deque<Integer> unclaimed; // tokens read that no one has taken yet
+	private Deque<Integer> held;      // tokens read that are in use
+	private int waiting;
+	private boolean broken;           // the pipe has gone, only the implicit token is left
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param input Where to read tokens from
+	 * @param output Where to write tokens back to
+	 * @param environment The environment variables that pass the pool on to child processes
+	 * @param description A description of the pool for log messages
+	 */
+	public PipeJobServer( InputStream input,
+	                      OutputStream output,
+	                      String[] environment,
+	                      String description )
+	{
+		this.input = input;
+		this.output = output;
+		this.environment = environment;
+		this.description = description;
+
+		this.implicitFree = true;
+		this.unclaimed = new ArrayDeque<Integer>();
+		this.held = new ArrayDeque<Integer>();
+		this.waiting = 0;
+		this.broken = false;
+
+		Thread reader = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				readTokens();
+			}
+		}, "cpptask-jobserver" );
+		reader.setDaemon( true );
+		reader.start();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public synchronized void acquire() throws InterruptedException
+	{
+		waiting++;
+		notifyAll(); // wake the reader
+		try
+		{
+			while( implicitFree == false && unclaimed.isEmpty() )
+				wait();
+
+			if( implicitFree )
+				implicitFree = false;
+			else
+				held.push( unclaimed.pop() );
+		}
+		finally
+		{
+			waiting--;
+			returnSurplus();
+		}
+	}
+
+	public synchronized void release()
+	{
+		// give back the tokens from the pipe first, we always keep our own
+		if( held.isEmpty() )
+			implicitFree = true;
+		else
+			writeToken( held.pop() );
+
+		notifyAll();
+		returnSurplus();
+	}
+
+	/**
+	 * @return The number of tokens we need from the pipe for the threads that are waiting
+	 */
+	private int getTokensNeeded()
+	{
+		return implicitFree ? waiting-1 : waiting;
+	}
+
+	/**
+	 * Give back any tokens we've read that there is no one waiting for
+	 */
+	private void returnSurplus()
+	{
+		while( unclaimed.size() > Math.max(0,getTokensNeeded()) )
+			writeToken( unclaimed.pop() );
+	}
+
+	private void writeToken( int token )
+	{
+		try
+		{
+			output.write( token );
+			output.flush();
+		}
+		catch( IOException ioex )
+		{
+			// the pipe has gone (whoever owned it has exited), nothing to give it back to
+			broken = true;
+		}
+	}
+
+	/**
+	 * Run by the reader thread: read a token whenever there are more threads waiting than
+	 * tokens waiting for them.
+	 */
+	private void readTokens()
+	{
+		try
+		{
+			while( true )
+			{
+				synchronized( this )
+				{
+					while( getTokensNeeded() <= unclaimed.size() )
+						wait();
+				}
+
+				int token = input.read();
+				synchronized( this )
+				{
+					if( token == -1 )
+					{
+						broken = true;
+						return;
+					}
+
+					// whoever we read it for might have given up or got the implicit token
+					unclaimed.push( token );
+					returnSurplus();
+					notifyAll();
+				}
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			// we're a daemon, only happens if someone really wants us gone
+		}
+		catch( IOException ioex )
+		{
+			synchronized( this )
+			{
+				broken = true;
+			}
+		}
+	}
+
+	/**
+	 * Put the given number of new tokens in the pipe. Only for a pool we created ourselves.
+	 */
+	synchronized void addTokens( int count ) throws IOException
+	{
+		for( int i = 0; i < count; i++ )
+			output.write( '+' );
+
+		output.flush();
+	}
+
+	public String[] getEnvironment()
+	{
+		return this.environment;
+	}
+
+	public synchronized String getDescription()
+	{
+		return broken ? description+" (no longer available)" : description;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Use the named pipe at the given location. The pipe is opened for reading and writing at
+	 * once, which doesn't block waiting for the other end on Linux.
+	 */
+	public static PipeJobServer openFifo( File fifo, String[] environment, String description )
+		throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( fifo, "rw" );
+		return new PipeJobServer( new FileInputStream(file.getFD()),
+		                          new FileOutputStream(file.getFD()),
+		                          environment,
+		                          description );
+	}
+
+	/**
+	 * Use the pipe on the given file descriptors, inherited from the process that started us.
+	 * These are opened through /dev/fd (a new handle on the same pipe), as there is no way to
+	 * use a raw descriptor from Java.
+	 */
+	public static PipeJobServer openDescriptors( int read,
+	                                             int write,
+	                                             String[] environment,
+	                                             String description )
+		throws IOException
+	{
+		File readFile = new File( "/dev/fd/"+read );
+		File writeFile = new File( "/dev/fd/"+write );
+		if( readFile.exists() == false || writeFile.exists() == false )
+			throw new IOException( "File descriptors "+read+","+write+" were not passed to us" );
+
+		return new PipeJobServer( new FileInputStream(readFile),
+		                          new FileOutputStream(writeFile),
+		                          environment,
+		                          description );
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.jobs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.tools.ant.Project;
+import org.portico.ant.tasks.cpptask.ResourceLimits;
+import org.portico.ant.tasks.utils.Platform;
+
+/**
+ * Finds the {@link JobServer} shared by every cpptask in this JVM. There is only ever one, it
+ * is found the first time it is asked for:
+ * <ol>
+ *   <li>If we were started by GNU make with a jobserver (<code>--jobserver-auth</code> in
+ *       MAKEFLAGS, either a named pipe or a pair of file descriptors), we take part in that.
+ *       This only works for recipes make passes the jobserver to (ones marked with
+ *       <code>+</code> or that use <code>$(MAKE)</code>).</li>
+ *   <li>Otherwise, if the <code>cpptask.jobs</code> property is set (a number, or "auto" for
+ *       the number of CPUs we can use), we create a pool of that size. Where we can, this is a
+ *       named pipe advertised to child processes in MAKEFLAGS, so things like
+ *       <code>gcc -flto=jobserver</code> draw from the same pool.</li>
+ *   <li>Otherwise there is no shared pool, and each task just runs its own thread count.</li>
+ * </ol>
+ */
+public class SharedJobServer
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String JOBS_PROPERTY = "cpptask.jobs";
+
+	private static boolean initialized = false;
+	private static JobServer instance = null;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private SharedJobServer()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get the job server shared by every task in the JVM, finding or creating it if this is the
+	 * first time through.
+	 *
+	 * @param project The project to read settings from and log against
+	 * @return The shared job server, or <code>null</code> if there isn't one
+	 */
+	public static synchronized JobServer get( Project project )
+	{
+		if( initialized )
+			return instance;
+
+		initialized = true;
+		String makeflags = System.getenv( "MAKEFLAGS" );
+		if( makeflags != null && getJobServerAuth(makeflags) != null )
+		{
+			try
+			{
+				instance = openMakeJobServer( makeflags );
+			}
+			catch( IOException ioex )
+			{
+				project.log( "Can't use the make jobserver, running without it: "+
+				             ioex.getMessage(), Project.MSG_WARN );
+			}
+		}
+
+		String jobs = project.getProperty( JOBS_PROPERTY );
+		if( instance == null && jobs != null )
+			instance = createJobServer( project, jobs, makeflags );
+
+		if( instance != null )
+			project.log( "Sharing jobs with the other tasks: "+instance.getDescription(),
+			             Project.MSG_VERBOSE );
+
+		return instance;
+	}
+
+	/**
+	 * Join the jobserver of the make that started us
+	 */
+	private static JobServer openMakeJobServer( String makeflags ) throws IOException
+	{
+		String auth = getJobServerAuth( makeflags );
+		if( auth.startsWith("fifo:") )
+		{
+			// children can use the same pipe, and already have it in their environment
+			File fifo = new File( auth.substring(5) );
+			return PipeJobServer.openFifo( fifo, new String[0], "make jobserver "+fifo );
+		}
+
+		String[] descriptors = auth.split( "," );
+		if( descriptors.length != 2 )
+			throw new IOException( "Don't understand jobserver \""+auth+"\"" );
+
+		int read = Integer.parseInt( descriptors[0].trim() );
+		int write = Integer.parseInt( descriptors[1].trim() );
+		if( read < 0 || write < 0 )
+			throw new IOException( "make has turned the jobserver off for this command" );
+
+		// the file descriptors can't be passed on to our child processes, so take the
+		// jobserver out of their MAKEFLAGS so they don't go looking for it
+		String[] environment = new String[]{ "MAKEFLAGS="+removeJobServer(makeflags) };
+		return PipeJobServer.openDescriptors( read, write, environment,
+		                                      "make jobserver (fds "+auth+")" );
+	}
+
+	/**
+	 * Create a pool of the given size (a number or "auto") for this JVM. On anything that has
+	 * named pipes, it is one and is passed to child processes.
+	 */
+	private static JobServer createJobServer( Project project, String jobs, String makeflags )
+	{
+		int size;
+		try
+		{
+			if( jobs.trim().equalsIgnoreCase("auto") )
+				size = new ResourceLimits().getCpuCount();
+			else
+				size = Integer.parseInt( jobs.trim() );
+		}
+		catch( NumberFormatException nfe )
+		{
+			project.log( "Ignoring "+JOBS_PROPERTY+"=\""+jobs+"\", it should be a number or "+
+			             "\"auto\"", Project.MSG_WARN );
+			return null;
+		}
+
+		size = Math.max( 1, size );
+		if( Platform.getOsPlatform().isWindows() )
+			return new LocalJobServer( size );
+
+		try
+		{
+			File directory = Files.createTempDirectory( "cpptask-jobs" ).toFile();
+			File fifo = new File( directory, "jobserver" );
+			Process mkfifo = new ProcessBuilder( "mkfifo", fifo.getAbsolutePath() ).start();
+			if( mkfifo.waitFor() != 0 || fifo.exists() == false )
+				throw new IOException( "mkfifo failed" );
+
+			directory.deleteOnExit();
+			fifo.deleteOnExit();
+
+			// advertise the pool the same way make 4.4 does
+			String flags = makeflags == null ? "" : removeJobServer( makeflags );
+			flags = flags+" -j"+size+" --jobserver-auth=fifo:"+fifo.getAbsolutePath();
+			String[] environment = new String[]{ "MAKEFLAGS="+flags.trim() };
+
+			// every process gets a token of its own, so the pipe holds one less
+			PipeJobServer server = PipeJobServer.openFifo( fifo, environment, size+" jobs, "+fifo );
+			server.addTokens( size-1 );
+			return server;
+		}
+		catch( Exception e )
+		{
+			project.log( "Can't create a named pipe for the job pool, it won't be shared with "+
+			             "child processes: "+e.getMessage(), Project.MSG_VERBOSE );
+			return new LocalJobServer( size );
+		}
+	}
+
+	/**
+	 * @return The value of the last --jobserver-auth (or older --jobserver-fds) in the given
+	 *         MAKEFLAGS, or <code>null</code> if there isn't one
+	 */
+	private static String getJobServerAuth( String makeflags )
+	{
+		String auth = null;
+		for( String flag : makeflags.trim().split("\\s+") )
+		{
+			if( flag.startsWith("--jobserver-auth=") )
+				auth = flag.substring( "--jobserver-auth=".length() );
+			else if( flag.startsWith("--jobserver-fds=") )
+				auth = flag.substring( "--jobserver-fds=".length() );
+		}
+
+		return auth;
+	}
+
+	/**
+	 * @return The given MAKEFLAGS without any jobserver or -j options
+	 */
+	private static String removeJobServer( String makeflags )
+	{
+		StringBuilder builder = new StringBuilder();
+		for( String flag : makeflags.trim().split("\\s+") )
+		{
+			if( flag.startsWith("--jobserver-") || flag.matches("-j\\d*") )
+				continue;
+
+			builder.append( flag ).append( " " );
+		}
+
+		return builder.toString().trim();
+	}
+}
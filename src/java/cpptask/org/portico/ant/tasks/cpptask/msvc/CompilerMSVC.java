@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -36,6 +37,7 @@ import org.portico.ant.tasks.cpptask.Define;
 import org.portico.ant.tasks.cpptask.IncludePath;
 import org.portico.ant.tasks.cpptask.Library;
 import org.portico.ant.tasks.cpptask.OutputType;
+import org.portico.ant.tasks.cpptask.state.ContentHasher;
 import org.portico.ant.tasks.utils.Arch;
 import org.portico.ant.tasks.utils.StringUtilities;
 
@@ -181,6 +183,12 @@ public class CompilerMSVC implements Compiler
 			int exitValue = runner.execute();
 			if( exitValue != 0 )
 				throw new BuildException( "Compile Failed, (exit value: " + exitValue + ")" );
+
+			// cl doesn't tell us about headers, so each object just depends on its source
+			for( File file : files )
+				helper.recordCompiled( file, new ArrayList<File>(), null );
+
+			helper.saveBuildState();
 		}
 		catch( IOException e )
 		{
@@ -491,6 +499,26 @@ public class CompilerMSVC implements Compiler
 		List<String> arguments = new ArrayList<String>();
 		arguments.addAll( generateLinkCommandOptions() );
 		arguments.addAll( getFilesAndLibrariesToLinkWith() );
+
+		// skip the link if the output is up to date with the command and everything it links
+		List<String> everything = new ArrayList<String>();
+		everything.addAll( Arrays.asList(commandline.getCommandline()) );
+		everything.addAll( arguments );
+		String fingerprint = ContentHasher.hashCommand( everything.toArray(new String[0]) );
+		List<File> inputs = new ArrayList<File>();
+		for( String argument : arguments )
+		{
+			File file = new File( argument );
+			if( file.isFile() )
+				inputs.add( file );
+		}
+
+		if( helper.isOutputUpToDate(inputs,fingerprint) )
+		{
+			task.log( "Output is up to date: " + helper.getPlatformSpecificOutputFile() );
+			task.log( "" ); // a little bit of space
+			return;
+		}
 		
 		// build the response file with the object and library files to link with
 		File responseFile = createResponseFile( "linker-files",
@@ -522,6 +550,8 @@ public class CompilerMSVC implements Compiler
 			{
 				throw new BuildException( "Link Failed, (exit value: " + exitValue + ")" );
 			}
+
+			helper.recordLinked( inputs, fingerprint );
 		}
 		catch( IOException e )
 		{
@@ -0,0 +1,659 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.state;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.portico.ant.tasks.utils.Platform;
+
+/**
+ * The {@link BuildState} is the persistent record of what happened during previous builds.
+ * It is used by the incremental build logic to work out what needs to be rebuilt. For each
+ * file it knows about it can hold (see {@link FileRecord}):
+ * <ul>
+ *   <li>The set of files a source depends on, as reported by the compiler</li>
+ *   <li>A fingerprint of the command that generated the object file for a source</li>
+ *   <li>Content hashes used by content based incremental builds (see {@link ContentHasher})</li>
+ *   <li>How long the source file took to compile</li>
+ *   <li>The <code>#include</code> directives found by the include scanner</li>
+ * </ul>
+ * The state is stored in a single file in the object directory, so, like the object files,
+ * there is one per target architecture. The state is only ever a cache of information we
+ * could otherwise regenerate with a full build, so if the file is missing or can't be read
+ * we just start with an empty state.
+ * <p/>
+ * <b>Storage Format</b>
+ * <p/>
+ * The file is a compact binary store that is memory mapped when loaded. Nothing is decoded up
+ * front; records are found through a hash index stored in the file and decoded the first time
+ * they are asked for, so a lookup costs the same whether the tree has a hundred files or a
+ * hundred thousand. Records that are read or changed are kept in memory and everything is
+ * written back out in one go by {@link #save()}. The layout is:
+ * <pre>
+ *   header : int magic, int version, int record count, int table offset,
+ *            int index size, int index offset
+ *   records: int path length, byte[] path (UTF-8), long size, long last modified,
+ *            long compile time, string content hash, string input digest,
+ *            string command fingerprint, int dependency count, int[] dependency numbers,
+ *            long scanned size, long scanned last modified, string includes
+ *   table  : int[record count] offset of each record
+ *   index  : [int path hash, int record number + 1] * index size (open addressing)
+ * </pre>
+ * Strings are an int length (-1 for null) followed by UTF-8 bytes. Scanned includes are stored
+ * as a single string with one entry per line. Dependencies refer to the
+ * number of the record for the dependency, so each header path is only stored (and decoded)
+ * once no matter how many sources include it. On Windows the file is read into memory rather
+ * than mapped, as a mapped file there can't be replaced until the mapping is garbage collected.
+ * <p/>
+ * All the record methods are safe to call from multiple compile threads at once.
+ */
+public class BuildState
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Name of the file the state is stored in inside the object directory */
+	public static final String STATE_FILE = "cpptask.state";
+
+	private static final int MAGIC = 0x43505453; // "CPTS"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File stateFile;
+
+	// the stored state, as loaded from disk (null if there wasn't one)
+	private ByteBuffer stored;
+	private int recordCount;
+	private int tableOffset;
+	private int indexSize;
+	private int indexOffset;
+	private String[] storedPaths; // decoded paths, by record number
+	private volatile boolean storedCorrupt; // something in it didn't add up, ignore the rest
+
+	// records that have been read from the stored state, or created/changed since
+	private ConcurrentMap<String,FileRecord> records;
+	private Set<String> removed;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public BuildState( File directory )
+	{
+		this.stateFile = new File( directory, STATE_FILE );
+		this.stored = null;
+		this.recordCount = 0;
+		this.tableOffset = 0;
+		this.indexSize = 0;
+		this.indexOffset = 0;
+		this.storedPaths = null;
+		this.storedCorrupt = false;
+		this.records = new ConcurrentHashMap<String,FileRecord>();
+		this.removed = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get the record for the given file, or <code>null</code> if there is no information
+	 * about it from a previous build.
+	 */
+	public FileRecord getRecord( File file )
+	{
+		return getRecord( file.getAbsolutePath() );
+	}
+
+	/**
+	 * Get the record for the file with the given absolute path, or <code>null</code> if
+	 * there is no information about it from a previous build.
+	 */
+	public FileRecord getRecord( String path )
+	{
+		FileRecord record = records.get( path );
+		if( record != null || stored == null || storedCorrupt || removed.contains(path) )
+			return record;
+
+		// not looked at yet, find it in the stored state
+		try
+		{
+			int number = findStored( path );
+			if( number == -1 )
+				return null;
+
+			record = readRecord( number );
+		}
+		catch( RuntimeException re )
+		{
+			storedCorrupt = true;
+			return null;
+		}
+
+		FileRecord existing = records.putIfAbsent( path, record );
+		return existing == null ? record : existing;
+	}
+
+	/**
+	 * Get the record for the given file, creating an empty one if there isn't one already.
+	 */
+	public FileRecord getOrCreateRecord( File file )
+	{
+		String path = file.getAbsolutePath();
+		FileRecord record = getRecord( path );
+		if( record == null )
+		{
+			FileRecord newRecord = new FileRecord( path );
+			record = records.putIfAbsent( path, newRecord );
+			if( record == null )
+				record = newRecord;
+
+			removed.remove( path );
+		}
+
+		return record;
+	}
+
+	/**
+	 * Record the full set of files that the given source file depends on. This replaces any
+	 * dependency information that was previously held for the source file.
+	 */
+	public void setDependencies( File sourceFile, List<File> dependencies )
+	{
+		List<String> paths = new ArrayList<String>( dependencies.size() );
+		for( File dependency : dependencies )
+			paths.add( dependency.getAbsolutePath() );
+
+		getOrCreateRecord( sourceFile ).setDependencies( paths );
+	}
+
+	/**
+	 * Remove any information held about the given file. Called when a file fails to compile
+	 * so that we don't trust stale information about it next time around.
+	 */
+	public void removeRecord( File file )
+	{
+		String path = file.getAbsolutePath();
+		removed.add( path );
+		records.remove( path );
+	}
+
+	/**
+	 * @return The file the state is persisted to
+	 */
+	public File getStateFile()
+	{
+		return this.stateFile;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////////// Stored State Access ////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Find the number of the record for the given path in the stored state by probing the
+	 * index. Returns -1 if there is no record for it.
+	 */
+	private int findStored( String path )
+	{
+		int hash = path.hashCode();
+		int mask = indexSize - 1;
+		for( int i = 0; i < indexSize; i++ )
+		{
+			int entry = indexOffset + ((hash+i) & mask) * INDEX_ENTRY_SIZE;
+			int number = stored.getInt( entry+4 ) - 1;
+			if( number == -1 )
+				return -1; // empty slot, it isn't here
+			else if( number < -1 || number >= recordCount )
+				throw new IndexOutOfBoundsException( "Record number out of range: "+number );
+
+			if( stored.getInt(entry) == hash && readPath(number).equals(path) )
+				return number;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Decode the record with the given number in the stored state. All reads use absolute
+	 * positions so that multiple threads can decode at once. Everything read is checked against
+	 * the size of the stored state first, so a truncated or damaged file gives an
+	 * {@link IndexOutOfBoundsException} rather than garbage. Callers treat that as there being
+	 * no stored state at all.
+	 */
+	private FileRecord readRecord( int number )
+	{
+		String path = readPath( number );
+		int position = getRecordOffset( number ) + stringLength( getRecordOffset(number) );
+
+		FileRecord record = new FileRecord( path );
+		checkBounds( position, 24 );
+		long size = stored.getLong( position );
+		long lastModified = stored.getLong( position+8 );
+		record.setCompileTime( stored.getLong(position+16) );
+		position += 24;
+
+		String contentHash = readString( position );
+		position += stringLength( position );
+		if( contentHash != null )
+			record.setContentHash( contentHash, size, lastModified );
+
+		record.setInputDigest( readString(position) );
+		position += stringLength( position );
+		record.setCommandFingerprint( readString(position) );
+		position += stringLength( position );
+
+		checkBounds( position, 4 );
+		int dependencyCount = stored.getInt( position );
+		position += 4;
+		checkBounds( position, (long)dependencyCount*4 );
+		List<String> dependencies = new ArrayList<String>( dependencyCount );
+		for( int i = 0; i < dependencyCount; i++, position += 4 )
+			dependencies.add( readPath(stored.getInt(position)) );
+
+		record.setDependencies( dependencies );
+
+		checkBounds( position, 16 );
+		String includes = readString( position+16 );
+		if( includes != null )
+		{
+			record.setIncludes( splitLines(includes),
+			                    stored.getLong(position),
+			                    stored.getLong(position+8) );
+		}
+
+		return record;
+	}
+
+	/**
+	 * Get the path of the record with the given number. Paths are cached once decoded, as the
+	 * same headers are referred to by the dependencies of many records. Strings are immutable,
+	 * so if two threads race to decode the same path, either result is fine.
+	 */
+	private String readPath( int number )
+	{
+		if( number < 0 || number >= recordCount )
+			throw new IndexOutOfBoundsException( "Record number out of range: "+number );
+
+		String path = storedPaths[number];
+		if( path == null )
+		{
+			path = readString( getRecordOffset(number) );
+			if( path == null )
+				throw new IndexOutOfBoundsException( "Record "+number+" has no path" );
+
+			storedPaths[number] = path;
+		}
+
+		return path;
+	}
+
+	private int getRecordOffset( int number )
+	{
+		int offset = stored.getInt( tableOffset + number*4 );
+		if( offset < HEADER_SIZE )
+			throw new IndexOutOfBoundsException( "Record offset out of range: "+offset );
+
+		return offset;
+	}
+
+	private String readString( int position )
+	{
+		checkBounds( position, 4 );
+		int length = stored.getInt( position );
+		if( length < 0 )
+			return null;
+
+		checkBounds( position+4, length );
+		// use a duplicate so we don't disturb the position of the shared buffer
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = stored.duplicate();
+		buffer.position( position+4 );
+		buffer.get( bytes );
+		return new String( bytes, UTF8 );
+	}
+
+	private int stringLength( int position )
+	{
+		checkBounds( position, 4 );
+		return 4 + Math.max( 0, stored.getInt(position) );
+	}
+
+	/**
+	 * Make sure the given number of bytes from the given position are within the stored state
+	 */
+	private void checkBounds( long position, long length )
+	{
+		if( position < 0 || length < 0 || position+length > stored.limit() )
+		{
+			throw new IndexOutOfBoundsException( "Build state truncated: "+length+" bytes at "+
+			                                     position+" of "+stored.limit() );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////// Load and Save Methods ///////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Load the state from the state file. If the file doesn't exist this is a no-op, leaving
+	 * us with an empty state. Any existing records are discarded before loading. Only the
+	 * header is checked here, records are checked as they are decoded. If one turns out to be
+	 * damaged, nothing more is read from the stored state, as if there hadn't been one.
+	 */
+	public void load() throws IOException
+	{
+		records.clear();
+		removed.clear();
+		storedPaths = null;
+		storedCorrupt = false;
+		stored = null;
+		if( stateFile.exists() == false )
+			return;
+
+		RandomAccessFile file = new RandomAccessFile( stateFile, "r" );
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if( length < HEADER_SIZE || length > Integer.MAX_VALUE )
+				throw new IOException( "Unrecognised build state file: "+stateFile );
+
+			ByteBuffer buffer = null;
+			if( Platform.getOsPlatform().isWindows() )
+			{
+				buffer = ByteBuffer.allocate( (int)length );
+				while( buffer.hasRemaining() && channel.read(buffer) != -1 )
+				{
+					// keep reading
+				}
+			}
+			else
+			{
+				buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, length );
+			}
+
+			// check the header
+			if( buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION )
+				throw new IOException( "Unrecognised build state file: "+stateFile );
+
+			int count = buffer.getInt( 8 );
+			int table = buffer.getInt( 12 );
+			int size = buffer.getInt( 16 );
+			int offset = buffer.getInt( 20 );
+			if( count < 0 ||
+			    table < HEADER_SIZE ||
+			    (long)table + (long)count*4 > length ||
+			    Integer.bitCount(size) != 1 ||
+			    offset < HEADER_SIZE ||
+			    (long)offset + (long)size*INDEX_ENTRY_SIZE > length )
+			{
+				throw new IOException( "Corrupt build state file: "+stateFile );
+			}
+
+			this.recordCount = count;
+			this.tableOffset = table;
+			this.indexSize = size;
+			this.indexOffset = offset;
+			this.storedPaths = new String[count];
+			this.stored = buffer;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Write the current state out to the state file, replacing whatever was there before.
+	 * The state is written to a temporary file first and then moved into place, so an
+	 * interrupted build can't leave a half-written state file behind.
+	 */
+	public void save() throws IOException
+	{
+		///////////////////////////////////////////
+		// 1. Gather up every record to write    //
+		///////////////////////////////////////////
+		Map<String,FileRecord> all = new LinkedHashMap<String,FileRecord>();
+		if( stored != null && storedCorrupt == false )
+		{
+			try
+			{
+				for( int i = 0; i < recordCount; i++ )
+				{
+					// records we haven't used this time are dropped once their file has gone
+					// (deleted sources and headers), otherwise the state only ever grows
+					String path = readPath( i );
+					if( records.containsKey(path) == false &&
+					    removed.contains(path) == false &&
+					    new File(path).exists() )
+					{
+						all.put( path, readRecord(i) );
+					}
+				}
+			}
+			catch( RuntimeException re )
+			{
+				// we can't trust any of it, keep only what we have in memory
+				all.clear();
+			}
+		}
+
+		all.putAll( records );
+
+		// every dependency needs a record of its own so we can refer to it by number
+		List<String> missing = new ArrayList<String>();
+		for( FileRecord record : all.values() )
+		{
+			for( String dependency : record.getDependencies() )
+			{
+				if( all.containsKey(dependency) == false )
+					missing.add( dependency );
+			}
+		}
+
+		for( String path : missing )
+		{
+			if( all.containsKey(path) == false )
+				all.put( path, new FileRecord(path) );
+		}
+
+		///////////////////////////////////////////
+		// 2. Work out where each record will go //
+		///////////////////////////////////////////
+		Map<String,Integer> numbers = new HashMap<String,Integer>();
+		int[] offsets = new int[all.size()];
+		long position = HEADER_SIZE;
+		for( FileRecord record : all.values() )
+		{
+			offsets[numbers.size()] = (int)position;
+			numbers.put( record.getPath(), numbers.size() );
+			position += getStoredSize( record );
+		}
+
+		// index has at least twice as many slots as records, always a power of two
+		int newIndexSize = Integer.highestOneBit( Math.max(16,all.size()*2) - 1 ) << 1;
+		long newTableOffset = position;
+		long newIndexOffset = newTableOffset + offsets.length*4L;
+		if( newIndexOffset + newIndexSize*(long)INDEX_ENTRY_SIZE > Integer.MAX_VALUE )
+			throw new IOException( "Build state too large to store" );
+
+		int mask = newIndexSize - 1;
+		int[] index = new int[newIndexSize*2];
+		for( Map.Entry<String,Integer> entry : numbers.entrySet() )
+		{
+			int hash = entry.getKey().hashCode();
+			int slot = hash & mask;
+			while( index[slot*2+1] != 0 )
+				slot = (slot+1) & mask;
+
+			index[slot*2] = hash;
+			index[slot*2+1] = entry.getValue() + 1;
+		}
+
+		///////////////////////////////////////////
+		// 3. Write it all out                   //
+		///////////////////////////////////////////
+		File tempFile = new File( stateFile.getParentFile(), STATE_FILE+".tmp" );
+		DataOutputStream output = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(tempFile), 64*1024) );
+		try
+		{
+			output.writeInt( MAGIC );
+			output.writeInt( VERSION );
+			output.writeInt( all.size() );
+			output.writeInt( (int)newTableOffset );
+			output.writeInt( newIndexSize );
+			output.writeInt( (int)newIndexOffset );
+
+			for( FileRecord record : all.values() )
+			{
+				boolean hashed = record.getContentHash() != null;
+				writeString( output, record.getPath() );
+				output.writeLong( hashed ? record.getSize() : -1 );
+				output.writeLong( hashed ? record.getLastModified() : -1 );
+				output.writeLong( record.getCompileTime() );
+				writeString( output, record.getContentHash() );
+				writeString( output, record.getInputDigest() );
+				writeString( output, record.getCommandFingerprint() );
+				output.writeInt( record.getDependencies().size() );
+				for( String dependency : record.getDependencies() )
+					output.writeInt( numbers.get(dependency) );
+
+				output.writeLong( record.getIncludesSize() );
+				output.writeLong( record.getIncludesLastModified() );
+				writeString( output, joinLines(record.getIncludes()) );
+			}
+
+			for( int offset : offsets )
+				output.writeInt( offset );
+
+			for( int value : index )
+				output.writeInt( value );
+		}
+		finally
+		{
+			output.close();
+		}
+
+		// we've decoded everything now, so hold it all in memory and let go of the old
+		// stored state before replacing the file underneath it
+		this.stored = null;
+		this.storedPaths = null;
+		this.removed.clear();
+		this.records.putAll( all );
+
+		// replace the old state in one step, so there is never a moment where a crash (or
+		// another task reading the same state) finds no state at all
+		try
+		{
+			Files.move( tempFile.toPath(),
+			            stateFile.toPath(),
+			            StandardCopyOption.ATOMIC_MOVE,
+			            StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch( AtomicMoveNotSupportedException amnse )
+		{
+			stateFile.delete();
+			if( tempFile.renameTo(stateFile) == false )
+				throw new IOException( "Could not move "+tempFile+" to "+stateFile );
+		}
+	}
+
+	/**
+	 * @return The number of bytes the given record will take up in the stored state
+	 */
+	private long getStoredSize( FileRecord record )
+	{
+		return getStoredSize( record.getPath() ) +
+		       24 +
+		       getStoredSize( record.getContentHash() ) +
+		       getStoredSize( record.getInputDigest() ) +
+		       getStoredSize( record.getCommandFingerprint() ) +
+		       4 + 4*record.getDependencies().size() +
+		       16 +
+		       getStoredSize( joinLines(record.getIncludes()) );
+	}
+
+	private long getStoredSize( String string )
+	{
+		return string == null ? 4 : 4 + string.getBytes(UTF8).length;
+	}
+
+	private void writeString( DataOutputStream output, String string ) throws IOException
+	{
+		if( string == null )
+		{
+			output.writeInt( -1 );
+		}
+		else
+		{
+			byte[] bytes = string.getBytes( UTF8 );
+			output.writeInt( bytes.length );
+			output.write( bytes );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static String joinLines( List<String> lines )
+	{
+		if( lines == null )
+			return null;
+
+		StringBuilder builder = new StringBuilder();
+		for( String line : lines )
+			builder.append( line ).append( '\n' );
+
+		return builder.toString();
+	}
+
+	private static List<String> splitLines( String string )
+	{
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		for( int end = string.indexOf('\n'); end != -1; end = string.indexOf('\n',start) )
+		{
+			lines.add( string.substring(start,end) );
+			start = end + 1;
+		}
+
+		return lines;
+	}
+}
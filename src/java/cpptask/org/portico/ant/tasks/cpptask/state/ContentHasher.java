@@ -0,0 +1,311 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.state;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Calculates hashes of file contents for content based incremental builds. Hashes are cached
+ * in the {@link BuildState} along with the size and timestamp of the file when it was hashed.
+ * If a file still has the same size and timestamp, the cached hash is used rather than reading
+ * the file again. Timestamps are only ever used to skip work here; if they change (a git
+ * checkout or restored cache) the file is simply hashed again and the content decides.
+ * <p/>
+ * Larger files are read through a memory mapping to avoid copying them onto the heap, and
+ * {@link #hashAll(Collection, int)} can be used to hash a large set of files in parallel.
+ */
+public class ContentHasher
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final String ALGORITHM = "SHA-1";
+
+	// files smaller than this are just read, mapping them costs more than it saves
+	private static final int MAP_THRESHOLD = 16 * 1024;
+
+	// marker used in digests for dependencies that don't exist
+	private static final String MISSING = "<missing>";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private BuildState state;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ContentHasher( BuildState state )
+	{
+		this.state = state;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Get the hash of the given file contents, using the cached value in the build state if
+	 * the file hasn't been touched since it was last hashed.
+	 *
+	 * @return The hash as a hex string, or <code>null</code> if the file doesn't exist
+	 * @throws IOException If there is a problem reading the file
+	 */
+	public String getHash( File file ) throws IOException
+	{
+		long lastModified = file.lastModified();
+		if( lastModified == 0 && file.exists() == false )
+			return null;
+
+		long size = file.length();
+		FileRecord record = state.getOrCreateRecord( file );
+		synchronized( record )
+		{
+			if( record.isContentHashValid(size,lastModified) )
+				return record.getContentHash();
+		}
+
+		// hash outside the lock, two threads hashing the same file is harmless
+		String hash = hashFile( file );
+		synchronized( record )
+		{
+			record.setContentHash( hash, size, lastModified );
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Make sure we have a current hash for each of the given files, hashing them in parallel
+	 * where required. Files that don't exist are ignored.
+	 *
+	 * @param files The files to hash
+	 * @param threadCount The number of threads to hash with
+	 * @throws IOException If there is a problem reading any of the files
+	 */
+	public void hashAll( Collection<File> files, int threadCount ) throws IOException
+	{
+		if( threadCount <= 1 || files.size() <= 1 )
+		{
+			for( File file : files )
+				getHash( file );
+
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool( threadCount );
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>( files.size() );
+			for( final File file : files )
+			{
+				results.add( executor.submit(new Callable<String>()
+				{
+					public String call() throws IOException
+					{
+						return getHash( file );
+					}
+				}) );
+			}
+
+			for( Future<String> result : results )
+				result.get();
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while hashing files" );
+		}
+		catch( ExecutionException ee )
+		{
+			if( ee.getCause() instanceof IOException )
+				throw (IOException)ee.getCause();
+			else
+				throw new IOException( ee.getCause() );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Generate a single digest that captures the contents of the source file and all the given
+	 * dependencies. If any of them change (or go missing, or a dependency is added or removed)
+	 * the digest will change.
+	 *
+	 * @param sourceFile The source file being compiled
+	 * @param dependencies The absolute paths of all the files the source depends on
+	 * @return The combined digest of all the inputs
+	 * @throws IOException If there is a problem reading any of the files
+	 */
+	public String getInputDigest( File sourceFile, List<String> dependencies ) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		update( digest, sourceFile.getAbsolutePath(), getHash(sourceFile) );
+		for( String dependency : dependencies )
+			update( digest, dependency, getHash(new File(dependency)) );
+
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Generate a single digest that captures the contents of all the given files, such as the
+	 * inputs to a link. If any of them change (or go missing, or one is added or removed) the
+	 * digest will change.
+	 *
+	 * @param files The files to digest, in a consistent order
+	 * @return The combined digest of the files
+	 * @throws IOException If there is a problem reading any of the files
+	 */
+	public String getDigest( List<File> files ) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		for( File file : files )
+			update( digest, file.getAbsolutePath(), getHash(file) );
+
+		return toHex( digest.digest() );
+	}
+
+	private void update( MessageDigest digest, String path, String hash ) throws IOException
+	{
+		digest.update( path.getBytes("UTF-8") );
+		digest.update( (byte)0 );
+		digest.update( (hash == null ? MISSING : hash).getBytes("UTF-8") );
+		digest.update( (byte)0 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Hash the contents of the given file, bypassing any caching.
+	 *
+	 * @return The hash of the file contents as a hex string
+	 * @throws IOException If there is a problem reading the file
+	 */
+	public static String hashFile( File file ) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		FileInputStream stream = new FileInputStream( file );
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if( size >= MAP_THRESHOLD )
+			{
+				// map in chunks so we're not limited to 2GB files
+				long position = 0;
+				while( position < size )
+				{
+					long length = Math.min( Integer.MAX_VALUE, size-position );
+					MappedByteBuffer buffer =
+						channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+					digest.update( buffer );
+					position += length;
+				}
+			}
+			else
+			{
+				ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+				while( buffer.hasRemaining() && channel.read(buffer) != -1 )
+				{
+					// keep reading
+				}
+
+				buffer.flip();
+				digest.update( buffer );
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Generate a fingerprint for a command line. Any change to the executable or any of the
+	 * arguments (including their order) will give a different fingerprint.
+	 *
+	 * @param command The full command line, executable first
+	 * @return The fingerprint as a hex string
+	 */
+	public static String hashCommand( String[] command )
+	{
+		MessageDigest digest = newDigest();
+		try
+		{
+			for( String argument : command )
+			{
+				digest.update( argument.getBytes("UTF-8") );
+				digest.update( (byte)0 );
+			}
+		}
+		catch( IOException ioex )
+		{
+			// UTF-8 is always supported
+			throw new IllegalStateException( ioex );
+		}
+
+		return toHex( digest.digest() );
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance( ALGORITHM );
+		}
+		catch( NoSuchAlgorithmException nsae )
+		{
+			// every JVM is required to support SHA-1
+			throw new IllegalStateException( nsae );
+		}
+	}
+
+	/**
+	 * Convert the given bytes into a lower case hex string
+	 */
+	public static String toHex( byte[] bytes )
+	{
+		char[] chars = new char[bytes.length*2];
+		for( int i = 0; i < bytes.length; i++ )
+		{
+			chars[i*2]   = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i*2+1] = HEX[bytes[i] & 0xf];
+		}
+
+		return new String( chars );
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.state;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parser for the make-style dependency files that gcc (and clang) generate when given the
+ * <code>-MD</code> or <code>-MMD</code> options. These files look like:
+ * <pre>
+ *   /path/to/obj/MyClass.o: /path/to/src/MyClass.cpp /path/to/include/MyClass.h \
+ *     /path/to/include/Other.h
+ * </pre>
+ * Everything after the first target separator is a prerequisite of the object file. Spaces
+ * inside file names are escaped with a backslash and lines are continued with a trailing
+ * backslash. Any additional (phony) rules, such as those generated by <code>-MP</code>,
+ * are ignored.
+ */
+public class DependencyFile
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private DependencyFile()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Parse the given dependency file and return all the prerequisites of the first rule
+	 * it contains. Relative paths are resolved against the given directory, which should be
+	 * the working directory the compiler was run in.
+	 *
+	 * @param dependencyFile The file generated by the compiler
+	 * @param baseDirectory The directory to resolve relative paths against
+	 * @return The list of files the target depends on, in the order they were listed
+	 * @throws IOException If there is a problem reading the file
+	 */
+	public static List<File> parse( File dependencyFile, File baseDirectory ) throws IOException
+	{
+		String contents = readFile( dependencyFile );
+		Set<File> dependencies = new LinkedHashSet<File>();
+
+		// skip past the target(s) to the start of the prerequisites. we can't just look
+		// for the first ':' as windows paths contain them, so look for one followed by
+		// whitespace (or the end of the file)
+		int index = findTargetSeparator( contents );
+		if( index == -1 )
+			return new ArrayList<File>();
+
+		StringBuilder token = new StringBuilder();
+		for( int i = index+1; i < contents.length(); i++ )
+		{
+			char current = contents.charAt( i );
+			if( current == '\\' && i+1 < contents.length() )
+			{
+				char next = contents.charAt( i+1 );
+				if( next == '\n' || next == '\r' )
+				{
+					// line continuation, treat as whitespace
+					addToken( token, baseDirectory, dependencies );
+					i++;
+					if( next == '\r' && i+1 < contents.length() && contents.charAt(i+1) == '\n' )
+						i++;
+					continue;
+				}
+				else if( next == ' ' || next == '#' || next == '\\' )
+				{
+					// escaped character, it is part of the file name
+					token.append( next );
+					i++;
+					continue;
+				}
+			}
+			else if( current == '$' && i+1 < contents.length() && contents.charAt(i+1) == '$' )
+			{
+				token.append( '$' );
+				i++;
+				continue;
+			}
+
+			if( current == '\n' || current == '\r' )
+			{
+				// end of the rule, anything after this is a phony target we don't care about
+				addToken( token, baseDirectory, dependencies );
+				break;
+			}
+			else if( Character.isWhitespace(current) )
+			{
+				addToken( token, baseDirectory, dependencies );
+			}
+			else
+			{
+				token.append( current );
+			}
+		}
+
+		// flush anything remaining
+		addToken( token, baseDirectory, dependencies );
+		return new ArrayList<File>( dependencies );
+	}
+
+	private static void addToken( StringBuilder token, File baseDirectory, Set<File> dependencies )
+	{
+		if( token.length() == 0 )
+			return;
+
+		File file = new File( token.toString() );
+		if( file.isAbsolute() == false )
+			file = new File( baseDirectory, token.toString() );
+
+		dependencies.add( file.getAbsoluteFile() );
+		token.setLength( 0 );
+	}
+
+	private static int findTargetSeparator( String contents )
+	{
+		for( int i = 0; i < contents.length(); i++ )
+		{
+			if( contents.charAt(i) != ':' )
+				continue;
+
+			if( i+1 == contents.length() || Character.isWhitespace(contents.charAt(i+1)) )
+				return i;
+		}
+
+		return -1;
+	}
+
+	private static String readFile( File file ) throws IOException
+	{
+		StringBuilder builder = new StringBuilder( (int)file.length() );
+		Reader reader = new InputStreamReader( new FileInputStream(file), "UTF-8" );
+		try
+		{
+			char[] buffer = new char[8192];
+			int read = 0;
+			while( (read = reader.read(buffer)) != -1 )
+				builder.append( buffer, 0, read );
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ *   Copyright 2026 The Portico Project
+ *
+ *   This file is part of cpptask.
+ *
+ *   cpptask is free software; you can redistribute and/or modify it under the
+ *   terms of the Common Development and Distribution License (the "License").
+ *   You may not use this file except in compliance with the License.
+ *
+ *   Use of this software is strictly AT YOUR OWN RISK!!!
+ *   Obtain a copy of the License at http://opensource.org/licenses/CDDL-1.0
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package org.portico.ant.tasks.cpptask.state;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds everything the {@link BuildState} knows about a single file from the last build.
+ * For source files this is the set of files the compiler reported the translation unit as
+ * depending on (the headers it included, directly or otherwise).
+ * <p/>
+ * For content based incremental builds, records also hold the hash of the file contents along
+ * with the size and timestamp the file had when it was hashed (so we can avoid hashing it again
+ * when it hasn't been touched). Source files additionally hold the digest of all their inputs
+ * at the time their object file was last generated.
+ * <p/>
+ * Source files also hold a fingerprint of the compile command their object was generated with,
+ * so changing compiler flags, defines or include paths causes them to be rebuilt, and how
+ * long the last compile of them took.
+ * <p/>
+ * Any file can also hold the raw <code>#include</code> directives found in it by the
+ * {@link org.portico.ant.tasks.cpptask.IncludeScanner}, along with the size and timestamp the
+ * file had when it was scanned, so that unchanged headers don't need to be scanned again.
+ */
+public class FileRecord
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String path;
+	private List<String> dependencies;
+	private long size;
+	private long lastModified;
+	private String contentHash;
+	private String inputDigest;
+	private String commandFingerprint;
+	private long compileTime;
+	private List<String> includes;
+	private long includesSize;
+	private long includesLastModified;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public FileRecord( String path )
+	{
+		this.path = path;
+		this.dependencies = new ArrayList<String>();
+		this.size = -1;
+		this.lastModified = -1;
+		this.contentHash = null;
+		this.inputDigest = null;
+		this.commandFingerprint = null;
+		this.compileTime = -1;
+		this.includes = null;
+		this.includesSize = -1;
+		this.includesLastModified = -1;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * The absolute path of the file this record is for
+	 */
+	public String getPath()
+	{
+		return this.path;
+	}
+
+	/**
+	 * The absolute paths of all the files the compiled output of this file depends on. This
+	 * is the full (transitive) set as reported by the compiler. It will be empty for files
+	 * that we have no dependency information for.
+	 */
+	public List<String> getDependencies()
+	{
+		return this.dependencies;
+	}
+
+	public void setDependencies( List<String> dependencies )
+	{
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * The hash of the file contents, or <code>null</code> if it has never been hashed. This is
+	 * only valid while the file still has the size and timestamp it had when it was hashed.
+	 * For a shared library that we link against, it is the hash of the interface of the library
+	 * rather than all of it (see {@link org.portico.ant.tasks.cpptask.gcc.ElfInterface}).
+	 */
+	public String getContentHash()
+	{
+		return this.contentHash;
+	}
+
+	/**
+	 * Store the hash of the file along with the size and timestamp the file had at the time.
+	 */
+	public void setContentHash( String contentHash, long size, long lastModified )
+	{
+		this.contentHash = contentHash;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return true if we have a content hash and the given size and timestamp match those the
+	 *         file had when it was taken
+	 */
+	public boolean isContentHashValid( long size, long lastModified )
+	{
+		return this.contentHash != null && this.size == size && this.lastModified == lastModified;
+	}
+
+	public long getSize()
+	{
+		return this.size;
+	}
+
+	public long getLastModified()
+	{
+		return this.lastModified;
+	}
+
+	/**
+	 * The combined digest of the contents of this source file and everything it depended on at
+	 * the time its object file was last generated. For an output, the digest of everything it
+	 * was last linked from, and for an object in a static library, the hash of the object as it
+	 * was when it was put in the library. <code>null</code> if we don't know it.
+	 */
+	public String getInputDigest()
+	{
+		return this.inputDigest;
+	}
+
+	public void setInputDigest( String inputDigest )
+	{
+		this.inputDigest = inputDigest;
+	}
+
+	/**
+	 * The fingerprint of the command line that was used to generate the object file for this
+	 * source file, or <code>null</code> if we don't know it.
+	 */
+	public String getCommandFingerprint()
+	{
+		return this.commandFingerprint;
+	}
+
+	public void setCommandFingerprint( String commandFingerprint )
+	{
+		this.commandFingerprint = commandFingerprint;
+	}
+
+	/**
+	 * How long (in milliseconds) it took to compile this source file the last time it was
+	 * compiled, or -1 if we don't know.
+	 */
+	public long getCompileTime()
+	{
+		return this.compileTime;
+	}
+
+	public void setCompileTime( long compileTime )
+	{
+		this.compileTime = compileTime;
+	}
+
+	/**
+	 * The <code>#include</code> directives found in this file when it was last scanned, or
+	 * <code>null</code> if it has never been scanned. Each entry is the included name with
+	 * the opening delimiter on the front (<code>"name</code> or <code>&lt;name</code>). This
+	 * is only valid while the file still has the size and timestamp it had when scanned.
+	 */
+	public List<String> getIncludes()
+	{
+		return this.includes;
+	}
+
+	/**
+	 * Store the includes found in the file along with the size and timestamp it had at the time.
+	 */
+	public void setIncludes( List<String> includes, long size, long lastModified )
+	{
+		this.includes = includes;
+		this.includesSize = size;
+		this.includesLastModified = lastModified;
+	}
+
+	/**
+	 * @return true if we have scanned includes and the given size and timestamp match those
+	 *         the file had when it was scanned
+	 */
+	public boolean isIncludesValid( long size, long lastModified )
+	{
+		return this.includes != null &&
+		       this.includesSize == size &&
+		       this.includesLastModified == lastModified;
+	}
+
+	public long getIncludesSize()
+	{
+		return this.includesSize;
+	}
+
+	public long getIncludesLastModified()
+	{
+		return this.includesLastModified;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
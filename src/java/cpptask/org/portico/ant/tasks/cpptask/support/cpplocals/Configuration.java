@@ -38,6 +38,29 @@ public class Configuration
 	//----------------------------------------------------------
 	//                    INSTANCE METHODS
 	//----------------------------------------------------------
+	/**
+	 * @return The extra compiler arguments for this type of build
+	 */
+	public String getCargs()
+	{
+		return this.compilerArgs;
+	}
+
+	/**
+	 * @return The extra linker arguments for this type of build
+	 */
+	public String getLargs()
+	{
+		return this.linkerArgs;
+	}
+
+	/**
+	 * @return The symbols to define for this type of build, separated by commas or spaces
+	 */
+	public String getSymbols()
+	{
+		return this.symbols;
+	}
 
 	//----------------------------------------------------------
 	//                     STATIC METHODS